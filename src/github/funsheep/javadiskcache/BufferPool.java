@@ -0,0 +1,86 @@
+/*
+	This file is part of the java diskcache library.
+	Copyright (C) 2005-2013 funsheep, cgrote
+
+	This library is subject to the terms of the Mozilla Public License, v. 2.0.
+	You should have received a copy of the MPL along with this library; see the
+	file LICENSE. If not, you can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package github.funsheep.javadiskcache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of buffers of a fixed size. Streams take their buffers from a pool and return them on close, short-lived streams
+ * therefore do not allocate new buffers. Direct buffers are used for buffers that are read from or written to channels.
+ * The pool keeps at most {@link #MAX_POOLED_BYTES} of unused buffers.
+ *
+ * @author funsheep
+ */
+class BufferPool
+{
+
+	/** Default size of a buffer. */
+	static final int DEFAULT_SIZE = 64 * 1024;
+	/** Maximum size of the unused buffers kept by a pool. */
+	static final int MAX_POOLED_BYTES = 16 * 1024 * 1024;
+
+	/** Default pool for heap buffers. */
+	static final BufferPool HEAP = new BufferPool(DEFAULT_SIZE, false);
+	/** Default pool for direct buffers. */
+	static final BufferPool DIRECT = new BufferPool(DEFAULT_SIZE, true);
+
+	private final int bufferSize;
+	private final boolean direct;
+	private final int maxPooled;
+	private final ArrayDeque<ByteBuffer> pool = new ArrayDeque<ByteBuffer>();
+
+
+	BufferPool(int bufferSize, boolean direct)
+	{
+		if (bufferSize <= 0)
+			throw new IllegalArgumentException("Buffer size has to be positive.");
+		this.bufferSize = bufferSize;
+		this.direct = direct;
+		this.maxPooled = Math.max(1, MAX_POOLED_BYTES / bufferSize);
+	}
+
+	int bufferSize()
+	{
+		return bufferSize;
+	}
+
+	/**
+	 * @return A cleared buffer.
+	 */
+	ByteBuffer acquire()
+	{
+		synchronized (pool)
+		{
+			final ByteBuffer buf = pool.poll();
+			if (buf != null)
+			{
+				buf.clear();
+				return buf;
+			}
+		}
+		return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+	}
+
+	/**
+	 * Returns a buffer to the pool. The buffer must no longer be used by the caller.
+	 * @param buf A buffer acquired from this pool or <code>null</code>.
+	 */
+	void release(ByteBuffer buf)
+	{
+		if (buf == null || buf.capacity() != bufferSize || buf.isDirect() != direct)
+			return;
+		synchronized (pool)
+		{
+			if (pool.size() < maxPooled)
+				pool.push(buf);
+		}
+	}
+
+}
@@ -0,0 +1,97 @@
+/*
+	This file is part of the java diskcache library.
+	Copyright (C) 2005-2013 funsheep, cgrote
+
+	This library is subject to the terms of the Mozilla Public License, v. 2.0.
+	You should have received a copy of the MPL along with this library; see the
+	file LICENSE. If not, you can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package github.funsheep.javadiskcache;
+
+/**
+ * A change of an entry of a {@link FileCache}, delivered to an {@link ICacheListener}.
+ *
+ * @author funsheep
+ */
+public final class CacheEvent
+{
+
+	/**
+	 * The kind of change.
+	 */
+	public enum Type
+	{
+
+		/** The entry has been loaded completely and can be read from the cache. */
+		COMPLETED,
+
+		/**
+		 * The entry has been loaded completely and is newer than another entry of the same source in the cache. Sent in
+		 * addition to {@link #COMPLETED}.
+		 */
+		NEW_VERSION,
+
+		/** The entry has been removed, e.g. to free space or by another process. */
+		EVICTED,
+
+		/** The entry has been removed because its content was corrupt. */
+		INVALIDATED
+
+	}
+
+	private final Type type;
+	private final String id;
+	private final long size;
+	private final long lastModified;
+
+
+	CacheEvent(Type type, String id, long size, long lastModified)
+	{
+		this.type = type;
+		this.id = id;
+		this.size = size;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * @return The kind of change.
+	 */
+	public Type getType()
+	{
+		return type;
+	}
+
+	/**
+	 * @return The id of the source of the entry.
+	 */
+	public String getID()
+	{
+		return id;
+	}
+
+	/**
+	 * @return The size of the entry, <i>-1</i> if the size of the entry is unknown.
+	 */
+	public long getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * @return The last modification of the source of the entry.
+	 */
+	public long getLastModified()
+	{
+		return lastModified;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString()
+	{
+		return "CacheEvent[" + type + ", id=" + id + ", size=" + size + ", lastModified=" + lastModified + "]";
+	}
+
+}
@@ -0,0 +1,132 @@
+/*
+	This file is part of the java diskcache library.
+	Copyright (C) 2005-2013 funsheep, cgrote
+
+	This library is subject to the terms of the Mozilla Public License, v. 2.0.
+	You should have received a copy of the MPL along with this library; see the
+	file LICENSE. If not, you can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package github.funsheep.javadiskcache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of a {@link FileCache}. The counters are updated concurrently, the values of different counters are therefore not
+ * necessarily consistent with each other.
+ *
+ * @author funsheep
+ */
+public class CacheStatistics
+{
+
+	final AtomicLong syncRounds = new AtomicLong();
+	final AtomicLong syncedFiles = new AtomicLong();
+	final AtomicLong syncFailures = new AtomicLong();
+	final AtomicLong syncNanos = new AtomicLong();
+	final AtomicLong pendingSyncs = new AtomicLong();
+	final AtomicLong memoryHits = new AtomicLong();
+	final AtomicLong promotions = new AtomicLong();
+	final AtomicLong cachedBytes = new AtomicLong();
+	final AtomicLong boundlessBytes = new AtomicLong();
+	final AtomicLong reconciliations = new AtomicLong();
+
+
+	CacheStatistics()
+	{
+		// created by the cache
+	}
+
+	/**
+	 * @return The number of batches in which completed entries have been forced to the storage device.
+	 */
+	public long getSyncRounds()
+	{
+		return syncRounds.get();
+	}
+
+	/**
+	 * @return The number of completed entries forced to the storage device.
+	 */
+	public long getSyncedFiles()
+	{
+		return syncedFiles.get();
+	}
+
+	/**
+	 * @return The number of entries that could not be forced to the storage device.
+	 */
+	public long getSyncFailures()
+	{
+		return syncFailures.get();
+	}
+
+	/**
+	 * @return The total time spent forcing entries to the storage device in milliseconds.
+	 */
+	public long getSyncMillis()
+	{
+		return syncNanos.get() / 1000000;
+	}
+
+	/**
+	 * @return The number of completed entries waiting to be forced to the storage device.
+	 */
+	public long getPendingSyncs()
+	{
+		return pendingSyncs.get();
+	}
+
+	/**
+	 * @return The number of requests served from the memory tier.
+	 */
+	public long getMemoryHits()
+	{
+		return memoryHits.get();
+	}
+
+	/**
+	 * @return The number of entries promoted because they became hot.
+	 */
+	public long getPromotions()
+	{
+		return promotions.get();
+	}
+
+	/**
+	 * @return The number of bytes occupied by entries of a known size, including entries that are
+	 *         being loaded.
+	 */
+	public long getCachedBytes()
+	{
+		return cachedBytes.get();
+	}
+
+	/**
+	 * @return The number of bytes occupied by entries of an unknown size.
+	 */
+	public long getBoundlessBytes()
+	{
+		return boundlessBytes.get();
+	}
+
+	/**
+	 * @return The number of times the occupied bytes have been reconciled with the cache directory.
+	 */
+	public long getReconciliations()
+	{
+		return reconciliations.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString()
+	{
+		return "CacheStatistics[syncRounds=" + getSyncRounds() + ", syncedFiles=" + getSyncedFiles() + ", syncFailures="
+			+ getSyncFailures() + ", syncMillis=" + getSyncMillis() + ", pendingSyncs=" + getPendingSyncs() + ", memoryHits="
+			+ getMemoryHits() + ", promotions=" + getPromotions() + ", cachedBytes="
+			+ getCachedBytes() + ", boundlessBytes=" + getBoundlessBytes() + ", reconciliations=" + getReconciliations() + "]";
+	}
+
+}
@@ -13,6 +13,8 @@ import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.SeekableByteChannel;
 import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  *
@@ -21,19 +23,25 @@ import java.util.HashMap;
 class CacheStreamLoader
 {
 	private static final Logger LOGGER = Logger.getLogger();
+	// by the absolute path of the cache file, several caches may load the same source
 	private static final HashMap<String, CacheStreamLoader> cacheLoader = new HashMap<String, CacheStreamLoader>();
 
 	private final SeekableByteChannel chan;
 	private final String uid;
-	private ByteBuffer buffer = ByteBuffer.allocate(8192);
-	private long position = 0;
+	private final WriteBehind writer;
+	private volatile long position = 0;
 	private long streamCount = 0;
 	private final InputStream in;
+	private final ILoadListener listener;
+	private final BufferPool buffers;
+	private Checksums checksums;
 	private boolean closed = false;
 
-	private CacheStreamLoader(final InputStream in, SeekableByteChannel out, String uid, long startpos, boolean autoload)
+	private CacheStreamLoader(final InputStream in, SeekableByteChannel out, String uid, long startpos, boolean autoload,
+		Checksums checksums, ILoadListener listener, BufferPool buffers, WriteBehind.Windows windows, Executor executor)
 	{
 		this.position = startpos;
+		this.buffers = buffers;
 		this.in = in;
 		this.chan = out;
 
@@ -63,9 +71,23 @@ class CacheStreamLoader
 			}
 		}
 		this.uid = uid;
+		this.listener = listener;
+		this.checksums = checksums;
+		if (checksums != null)
+			try
+			{
+				checksums.start(this.position, this.chan);
+			} catch (IOException e)
+			{
+				LOGGER.warn("Could not checksum " + uid, e);
+				Tools.close(checksums);
+				this.checksums = null;
+			}
+		this.writer = new WriteBehind(this.chan, this.position, this.checksums, buffers, windows, executor);
 
 		if (autoload)
-			new Thread()
+		{
+			final Runnable load = new Runnable()
 				{
 
 					@Override
@@ -86,7 +108,19 @@ class CacheStreamLoader
 						}
 
 					}
-				}.start();
+				};
+			if (executor != null)
+				try
+				{
+					executor.execute(load);
+					return;
+				}
+				catch (RejectedExecutionException e)
+				{
+					// the cache has been closed
+				}
+			new Thread(load).start();
+		}
 	}
 
 	private synchronized int read(byte b[], int off, int len) throws IOException
@@ -98,47 +132,41 @@ class CacheStreamLoader
 
 		if (read > 0)
 		{
-			position += read;
-			int pos = 0;
-			do
-			{
-				if (buffer.hasRemaining())
-				{
-					int toCopy = Math.min(read - pos, buffer.remaining());
-					buffer.put(b, pos + off, toCopy);
-					pos += toCopy;
-				} else
-				{
-					buffer.flip();
-					while (buffer.hasRemaining())
-						chan.write(buffer);
-					buffer.clear();
-				}
-			} while (pos < read);
+			writer.put(b, off, read); // blocks only if the writer falls behind
+			position += read; // followers may read up to here
+			if (listener != null)
+				listener.written(read);
 		} else
-			this.closeInput();
+			this.closeInput(true);
 
 		return read;
 	}
 
-	private synchronized void closeInput() throws IOException
+	private synchronized void closeInput(boolean eof) throws IOException
 	{
 		if (closed)
 			return;
 
-		if (buffer.position() > 0) // flush content
+		IOException error = null;
+		try
 		{
-			final int limit = buffer.limit();
-			final int bpos = buffer.position();
-			buffer.flip();
-			while (buffer.hasRemaining())
-				chan.write(buffer);
-			buffer.limit(limit);
-			buffer.position(bpos);
+			writer.flush();
+			if (eof && chan instanceof CompressedChannel)
+				((CompressedChannel)chan).finish(); // the entry is published by the listener
+		} catch (IOException e)
+		{
+			error = e;
 		}
 
 		in.close();
 		closed = true;
+
+		final byte[] digest = error == null && eof && checksums != null ? checksums.finish() : null;
+		Tools.close(checksums);
+		if (error != null)
+			throw error;
+		if (eof && listener != null)
+			listener.loaded(position, digest);
 	}
 
 	synchronized void close() throws IOException
@@ -147,99 +175,138 @@ class CacheStreamLoader
 		{
 			if (--streamCount == 0)
 			{
-				closeInput();
-				chan.close();
-				buffer = null;
 				cacheLoader.remove(uid);
+				try
+				{
+					closeInput(false);
+				} finally
+				{
+					writer.release();
+					chan.close();
+				}
 			}
 		}
 	}
 
-	synchronized int read(long inputPosition, ByteBuffer buf) throws IOException
+	/**
+	 * @return The pool of heap buffers used by this loader and its streams.
+	 */
+	BufferPool buffers()
 	{
-		int deltaP = (int)(position - inputPosition);
+		return buffers;
+	}
 
-		int read = 0;
+	/**
+	 * Reads the content at the given position. Content that has already been loaded is read
+	 * without locking the loader, preferably from the given channel of the reading stream.
+	 * @param reader The own channel of the reading stream on the cache file or <code>null</code>.
+	 */
+	int read(long inputPosition, ByteBuffer buf, SeekableByteChannel reader) throws IOException
+	{
+		int read;
+		if (inputPosition < position)
+		{ // already loaded, read from the pending buffers or the cache file
+			int bpos = buf.position();
+			read = writer.read(inputPosition, buf, reader);
+			buf.position(bpos);
+		}
+		else
+			read = this.readAhead(inputPosition, buf);
 
-		if (deltaP <= 0) // read ahead
-		{
-			if (deltaP != 0 && skip(-deltaP) < -deltaP)
-				return -1;
+		if (read > 0) // update limit
+			buf.limit(buf.position() + read);
 
-			read = read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
-		}
+		return read;
+	}
 
-		else if (buffer.position() - deltaP >= 0) // read from buffer
-		{
-			int bpos = buffer.position();
-			int limit = buffer.limit();
-			buffer.limit(bpos);
-			buffer.position(buffer.position() - deltaP);
-			read = Math.min(buf.remaining(), buffer.remaining());
-			buffer.get(buf.array(), buf.arrayOffset() + buf.position(), read);
-			buffer.position(bpos);
-			buffer.limit(limit);
-		} else
-		{ // no longer in buffer (rewind)
+	/**
+	 * Blocks until the content at the given position has been handed to the writer.
+	 * @throws IOException if writing the content failed.
+	 */
+	void awaitContent(long inputPosition) throws IOException
+	{
+		writer.awaitContent(inputPosition);
+	}
 
-			long currentPos = chan.position();
-			chan.position(inputPosition);
+	private synchronized int readAhead(long inputPosition, ByteBuffer buf) throws IOException
+	{
+		long deltaP = position - inputPosition;
+		if (deltaP > 0) // loaded in the meantime
+		{
 			int bpos = buf.position();
-			read = chan.read(buf);
+			int read = writer.read(inputPosition, buf, null);
 			buf.position(bpos);
-			chan.position(currentPos);
+			return read;
 		}
 
-		if (read > 0) // update limit
-			buf.limit(buf.position() + read);
+		if (deltaP != 0 && skip(-deltaP) < -deltaP)
+			return -1;
 
-		return read;
+		return read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
 	}
 
-	synchronized long skip(long inputPosition, long n) throws IOException
+	long skip(long inputPosition, long n) throws IOException
 	{
-		long toSkip = position - inputPosition;
+		long loaded = position - inputPosition;
+		if (loaded >= n) // skip within the loaded content
+			return n;
 
-		if (toSkip >= 0)
-			return this.skip(n - toSkip);
+		synchronized (this)
+		{
+			loaded = position - inputPosition;
+			if (loaded >= 0)
+				return loaded + this.skip(n - loaded);
 
-		return this.skip(-toSkip) + this.skip(n);
+			if (skip(-loaded) < -loaded)
+				return 0;
+			return this.skip(n);
+		}
 	}
 
 	private synchronized long skip(long n) throws IOException
 	{
-		final byte[] b = new byte[8192];
+		final ByteBuffer buf = buffers.acquire();
+		final byte[] b = buf.array();
 		final long skip = n;
 		int read = 0;
-		while (n > 0)
+		try
+		{
+			while (n > 0)
+			{
+				read = this.read(b, buf.arrayOffset(), (int)Math.min(buf.capacity(), n));
+				if (read < 0)
+					break;
+				n -= read;
+			}
+		} finally
 		{
-			read = this.read(b, 0, (int)Math.min(b.length, n));
-			if (read < 0)
-				break;
-			n -= read;
+			buffers.release(buf);
 		}
 
 		return skip - n;
 	}
 
-	synchronized int available(long inputPosition) throws IOException
+	/**
+	 * @return The number of loaded bytes at the given position. Does not lock the loader, followers therefore do not wait
+	 *         for the source while the loader reads it.
+	 */
+	int available(long inputPosition)
 	{
-		int bufferPos = (int)(position - inputPosition);
-		if (bufferPos < 0)
+		final long loaded = position - inputPosition;
+		if (loaded <= 0)
 			return 0;
-		if (bufferPos < buffer.limit())
-			return buffer.remaining();
-		return Math.max(0, in.available() - bufferPos);
+		return (int)Math.min(Integer.MAX_VALUE, loaded);
 	}
 
-	static CacheStreamLoader getStream(final InputStream in, SeekableByteChannel out, String uid, long startpos, boolean autoload)
+	static CacheStreamLoader getStream(final InputStream in, SeekableByteChannel out, String uid, long startpos, boolean autoload,
+		Checksums checksums, ILoadListener listener, BufferPool buffers, WriteBehind.Windows windows, Executor executor)
 	{
 		synchronized (cacheLoader)
 		{
 			CacheStreamLoader csl = cacheLoader.get(uid);
 			if (csl == null)
 			{
-				csl = new CacheStreamLoader(in, out, uid, startpos, autoload);
+				csl = new CacheStreamLoader(in, out, uid, startpos, autoload, checksums, listener, buffers, windows, executor);
 				cacheLoader.put(uid, csl);
 			}
 			csl.streamCount++;
@@ -10,16 +10,23 @@ package github.funsheep.javadiskcache;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
 
 /**
  * URL wrapper for the {@link ICacheable} interface.
  * Uses the light weight {@link URLConnection} to retrieve size and lastModified time stamp. Only accesses the input stream if
- * no proper version is found in the {@link FileCache}.
+ * no proper version is found in the {@link FileCache}. Parts of the content are requested with HTTP range requests.
+ * Range requests are conditional on the version of the first request, its strong ETag or its lastModified time stamp. If
+ * the source has changed in the meantime, requesting a part fails instead of mixing the content of two versions.
  * @author funsheep
  */
-public class CacheableURL implements ICacheable
+public class CacheableURL implements IRangeCacheable
 {
 
 	/** Constant that specifies the timeout when connecting to the source the url points at. Can be changed when needed. */
@@ -93,6 +100,101 @@ public class CacheableURL implements ICacheable
 		return con.getInputStream();
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public InputStream requestContent(long offset, long length) throws IOException
+	{
+		final URLConnection con = this.url.openConnection();
+		con.setConnectTimeout(NETWORK_TIMEOUT);
+		con.setReadTimeout(NETWORK_TIMEOUT);
+		con.setUseCaches(false);
+		if (length == UNKNOWN)
+			con.setRequestProperty("Range", "bytes=" + offset + "-");
+		else
+			con.setRequestProperty("Range", "bytes=" + offset + "-" + (offset + length - 1));
+		final String validator = this.validator();
+		if (validator != null)
+			con.setRequestProperty("If-Range", validator);
+		con.connect();
+
+		final InputStream in = con.getInputStream();
+		if (con instanceof HttpURLConnection && ((HttpURLConnection)con).getResponseCode() == HttpURLConnection.HTTP_PARTIAL)
+		{
+			if (rangeStart(con.getHeaderField("Content-Range")) == offset)
+				return in;
+			Tools.close(in);
+			throw new IOException("Unexpected range " + con.getHeaderField("Content-Range") + " of " + this.url + ", requested " + offset);
+		}
+		if (validator != null && con instanceof HttpURLConnection)
+		{
+			// the server sends the whole content if the validator does not match
+			Tools.close(in);
+			throw new IOException("Source " + this.url + " has changed, range request answered with the whole content.");
+		}
+		if (offset == 0)
+			return in;
+
+		// range not supported by the server, skip manually
+		LOGGER.info("Range request not supported by " + this.url + ". Skipping " + offset + " bytes.");
+		long toSkip = offset;
+		while (toSkip > 0)
+		{
+			final long skip = in.skip(toSkip);
+			if (skip <= 0)
+			{
+				if (in.read() == -1)
+				{
+					Tools.close(in);
+					throw new IOException("Could not skip to position " + offset + " of " + this.url);
+				}
+				toSkip--;
+			}
+			else
+				toSkip -= skip;
+		}
+		return in;
+	}
+
+	/**
+	 * @return The strong ETag or the lastModified time stamp of the first request as HTTP date, <code>null</code> if
+	 *         neither is known.
+	 */
+	private String validator()
+	{
+		final URLConnection con = this.getCon();
+		if (con == null)
+			return null;
+		final String etag = con.getHeaderField("ETag");
+		if (etag != null && !etag.startsWith("W/")) // weak tags are not allowed in If-Range
+			return etag;
+		final long lastModified = this.lastModified();
+		if (lastModified == UNKNOWN)
+			return null;
+		final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format.format(new Date(lastModified));
+	}
+
+	/**
+	 * @return The first byte of the given Content-Range header, <i>-1</i> if it can not be parsed.
+	 */
+	private static long rangeStart(String contentRange)
+	{
+		if (contentRange == null || !contentRange.startsWith("bytes "))
+			return -1;
+		final int end = contentRange.indexOf('-');
+		try
+		{
+			return end < 0 ? -1 : Long.parseLong(contentRange.substring(6, end).trim());
+		}
+		catch (NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+
 	/**
 	 * Method to get the url connection. Stored if connect was successful.
 	 * If not successfully connected, <code>null</code> is returned.
@@ -12,6 +12,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.SeekableByteChannel;
+import java.util.concurrent.Executor;
 
 /**
  * Inputstream wrapper.
@@ -25,7 +26,9 @@ class CachedInputStream extends InputStream
 {
 
 	private final CacheStreamLoader cachedIn;
-	private ByteBuffer buffer = ByteBuffer.allocate(8192);
+	private final BufferPool buffers;
+	private ByteBuffer buffer;
+	private SeekableByteChannel reader = null;
 	private long inputPosition = 0;
 	private boolean closed = false;
 
@@ -34,7 +37,7 @@ class CachedInputStream extends InputStream
 	 * Constructor.
 	 * @param in An input stream connected to the original source or <code>null</code>.
 	 * @param out An byte channel connected to the cached file.
-	 * @param uid The unique ID of the source.
+	 * @param uid The key of the entry, the absolute path of its cache file.
 	 */
 	CachedInputStream(final InputStream in, SeekableByteChannel out, String uid)
 	{
@@ -42,24 +45,47 @@ class CachedInputStream extends InputStream
 	}
 
 	CachedInputStream(final InputStream in, SeekableByteChannel out, String uid, boolean autoload)
+	{
+		this(in, out, uid, autoload, null, null, BufferPool.HEAP,
+			new WriteBehind.Windows(WriteBehind.DEFAULT_WINDOW, WriteBehind.DEFAULT_WINDOW), null);
+	}
+
+	/**
+	 * Constructor.
+	 * @param in An input stream connected to the original source or <code>null</code>.
+	 * @param out An byte channel connected to the cached file.
+	 * @param uid The key of the entry, the absolute path of its cache file.
+	 * @param autoload Whether the source should be loaded completely, even if this stream is not read.
+	 * @param checksums Checksums to compute while loading. May be <code>null</code>.
+	 * @param listener Notified when the source has been loaded completely. May be <code>null</code>.
+	 * @param buffers The pool of heap buffers for this stream and the loader.
+	 * @param windows The size and memory of the windows of recently loaded content kept for followers.
+	 * @param executor Loads and writes the source in the background. May be <code>null</code>.
+	 */
+	CachedInputStream(final InputStream in, SeekableByteChannel out, String uid, boolean autoload, Checksums checksums,
+		ILoadListener listener, BufferPool buffers, WriteBehind.Windows windows, Executor executor)
 	{
 		CacheStreamLoader cin;
 		try
 		{
-			cin = CacheStreamLoader.getStream(in, out, uid, out.size(), autoload);
+			cin = CacheStreamLoader.getStream(in, out, uid, out.size(), autoload, checksums, listener, buffers, windows, executor);
 		}
 		catch (IOException e)
 		{
-			cin = CacheStreamLoader.getStream(in, out, uid, 0, autoload);
+			cin = CacheStreamLoader.getStream(in, out, uid, 0, autoload, checksums, listener, buffers, windows, executor);
 		}
 
 		this.cachedIn = cin;
+		this.buffers = cin.buffers();
+		this.buffer = this.buffers.acquire();
 		buffer.limit(0);
 	}
 
 	private CachedInputStream(final CacheStreamLoader cin)
 	{
 		this.cachedIn = cin;
+		this.buffers = cin.buffers();
+		this.buffer = this.buffers.acquire();
 		buffer.limit(0);
 	}
 
@@ -69,21 +95,16 @@ class CachedInputStream extends InputStream
 	@Override
 	public synchronized int read() throws IOException
 	{
-		if (!buffer.hasRemaining()) // fill buffer if empty
+		this.ensureOpen();
+		while (!buffer.hasRemaining()) // fill buffer if empty
 		{
 			buffer.clear();
-			final int read;
-			if ((read = cachedIn.read(inputPosition, buffer)) > 0)
-				inputPosition += read;
-
-			if (read == -1)
-				return read;
+			final int read = this.fill(buffer);
+			if (read < 0)
+				return -1;
+			inputPosition += read;
 		}
-
-		if (buffer.hasRemaining())
-			return buffer.get() & 0xff;
-
-		return -1;
+		return buffer.get() & 0xff;
 	}
 
 	/**
@@ -101,51 +122,71 @@ class CachedInputStream extends InputStream
 	@Override
 	public synchronized int read(byte b[], int off, int len) throws IOException
 	{
+		this.ensureOpen();
+		if (len == 0)
+			return 0;
 
-		if (!buffer.hasRemaining()) // fill buffer if empty
+		int total = 0;
+		while (total < len)
 		{
-			buffer.clear();
-			final int read;
-			if ((read = cachedIn.read(inputPosition, buffer)) > 0)
+			// after the first bytes only read what is available without blocking
+			if (total > 0 && !buffer.hasRemaining() && cachedIn.available(inputPosition) <= 0)
+				break;
+
+			if (!buffer.hasRemaining() && len - total >= buffer.capacity()) // large read, bypass the buffer
+			{
+				final ByteBuffer dst = ByteBuffer.wrap(b, off + total, len - total);
+				final int read = total > 0 ? cachedIn.read(inputPosition, dst, reader) : this.fill(dst);
+				if (read <= 0)
+					return total > 0 ? total : -1;
 				inputPosition += read;
+				total += read;
+				continue;
+			}
 
-			if (read == -1)
+			if (!buffer.hasRemaining()) // fill buffer if empty
 			{
-				buffer.limit(0);
-				return read;
+				buffer.clear();
+				final int read = total > 0 ? cachedIn.read(inputPosition, buffer, reader) : this.fill(buffer);
+				if (read <= 0)
+				{
+					buffer.limit(0);
+					return total > 0 ? total : -1;
+				}
+				inputPosition += read;
 			}
-		}
 
-		if (buffer.hasRemaining()) // copy to array
-		{
-			final int read = Math.min(len, buffer.remaining());
-			buffer.get(b, off, read);
-			return read;
+			final int read = Math.min(len - total, buffer.remaining()); // copy to array
+			buffer.get(b, off + total, read);
+			total += read;
 		}
 
-		return -1;
+		return total;
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public int available() throws IOException
+	public synchronized int available() throws IOException
 	{
+		this.ensureOpen();
 		return buffer.remaining() + cachedIn.available(inputPosition);
 	}
 
 	/**
-	 * {@inheritDoc}
+	 * Synchronized with the reads, the buffer goes back to the pool only when no read uses it.
 	 */
 	@Override
-	public void close() throws IOException
+	public synchronized void close() throws IOException
 	{
 		if (closed)
 			return;
 
 		closed = true;
+		buffers.release(buffer);
 		buffer = null;
+		Tools.close(reader);
 		cachedIn.close();
 	}
 
@@ -182,6 +223,7 @@ class CachedInputStream extends InputStream
 	@Override
 	public synchronized long skip(long n) throws IOException
 	{
+		this.ensureOpen();
 		int remaining = (int)Math.min(buffer.remaining(), n);
 
 		n -= remaining;
@@ -197,6 +239,36 @@ class CachedInputStream extends InputStream
 		return remaining;
 	}
 
+	/**
+	 * Reads at least one byte into the given buffer, waits until the loader has loaded it.
+	 * @return The number of bytes read or <i>-1</i> at the end of the content.
+	 */
+	private int fill(ByteBuffer dst) throws IOException
+	{
+		while (true)
+		{
+			final int read = cachedIn.read(inputPosition, dst, reader);
+			if (read != 0)
+				return read;
+			cachedIn.awaitContent(inputPosition);
+		}
+	}
+
+	private void ensureOpen() throws IOException
+	{
+		if (closed)
+			throw new IOException("Stream closed");
+	}
+
+	/**
+	 * Sets an own channel on the cache file. Content that has already been loaded is read from
+	 * this channel, independent of the loader and other streams.
+	 */
+	void setReader(SeekableByteChannel reader)
+	{
+		this.reader = reader;
+	}
+
 	static CachedInputStream getStreamFromLoader(String uid)
 	{
 		CacheStreamLoader csl = CacheStreamLoader.getStream(uid);
@@ -0,0 +1,174 @@
+/*
+	This file is part of the java diskcache library.
+	Copyright (C) 2005-2013 funsheep, cgrote
+
+	This library is subject to the terms of the Mozilla Public License, v. 2.0.
+	You should have received a copy of the MPL along with this library; see the
+	file LICENSE. If not, you can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package github.funsheep.javadiskcache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Checksums of the content of a cache entry, computed while the content is loaded.
+ * The content is checksummed in blocks of {@link #BLOCK} bytes with CRC-32C, the whole content additionally with SHA-256.
+ * The CRCs are stored in a side file: the block size (int) followed by one CRC (int) per block. The CRC of a block is written
+ * as soon as the block has been loaded.
+ *
+ * @author funsheep
+ */
+class Checksums implements Closeable
+{
+
+	private static final Logger LOGGER = Logger.getLogger();
+
+	/** Size of a checksummed block. */
+	static final int BLOCK = 64 * 1024;
+
+	private static final int HEADER = 4;
+
+	private final Path crcFile;
+	private final Crc32c crc = new Crc32c();
+	private FileChannel out;
+	private MessageDigest digest;
+	private long block = 0;
+	private int blockFill = 0;
+
+
+	Checksums(Path crcFile)
+	{
+		this.crcFile = crcFile;
+	}
+
+	/**
+	 * Starts checksumming at the given position. When resuming within a block, the already loaded part of the block is
+	 * read from the given channel. The digest is only computed when starting at the beginning of the content.
+	 */
+	void start(long position, SeekableByteChannel chan) throws IOException
+	{
+		block = position / BLOCK;
+		blockFill = (int)(position % BLOCK);
+		digest = position == 0 ? newDigest() : null;
+
+		if (blockFill > 0)
+		{
+			final long oldPos = chan.position();
+			final ByteBuffer prefix = ByteBuffer.allocate(blockFill);
+			chan.position(block * BLOCK);
+			while (prefix.hasRemaining())
+				if (chan.read(prefix) < 0)
+					throw new IOException("Could not read block " + block + " of " + crcFile);
+			chan.position(oldPos);
+			crc.update(prefix.array(), 0, blockFill);
+		}
+
+		Files.createDirectories(crcFile.getParent());
+		out = FileChannel.open(crcFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		out.truncate(HEADER + block * 4);
+		final ByteBuffer header = ByteBuffer.allocate(HEADER);
+		header.putInt(BLOCK).flip();
+		while (header.hasRemaining())
+			out.write(header, header.position());
+	}
+
+	/**
+	 * Updates the checksums with the next loaded bytes.
+	 */
+	void update(byte[] b, int off, int len) throws IOException
+	{
+		if (out == null)
+			return;
+		if (digest != null)
+			digest.update(b, off, len);
+
+		while (len > 0)
+		{
+			final int n = Math.min(len, BLOCK - blockFill);
+			crc.update(b, off, n);
+			blockFill += n;
+			off += n;
+			len -= n;
+			if (blockFill == BLOCK)
+				this.writeBlock();
+		}
+	}
+
+	private void writeBlock() throws IOException
+	{
+		final ByteBuffer value = ByteBuffer.allocate(4);
+		value.putInt((int)crc.getValue()).flip();
+		while (value.hasRemaining())
+			out.write(value, HEADER + block * 4 + value.position());
+		block++;
+		blockFill = 0;
+		crc.reset();
+	}
+
+	/**
+	 * Writes the checksum of the last (partial) block. Has to be called after the whole content has been loaded.
+	 * @return The SHA-256 digest of the content or <code>null</code> if the loading was resumed.
+	 */
+	byte[] finish() throws IOException
+	{
+		if (out == null)
+			return null;
+		if (blockFill > 0)
+			this.writeBlock();
+		this.close();
+		return digest == null ? null : digest.digest();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (out != null)
+			out.close();
+	}
+
+
+	static MessageDigest newDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			LOGGER.warn("SHA-256 not available", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the block CRCs of an entry.
+	 * @return The CRCs or <code>null</code> if none could be read.
+	 */
+	static int[] read(Path crcFile)
+	{
+		try
+		{
+			final ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(crcFile));
+			if (data.remaining() < HEADER || data.getInt() != BLOCK)
+				return null;
+			final int[] crcs = new int[data.remaining() / 4];
+			for (int i = 0; i < crcs.length; i++)
+				crcs[i] = data.getInt();
+			return crcs;
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+
+}
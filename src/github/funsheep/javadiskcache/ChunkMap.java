@@ -0,0 +1,321 @@
+/*
+	This file is part of the java diskcache library.
+	Copyright (C) 2005-2013 funsheep, cgrote
+
+	This library is subject to the terms of the Mozilla Public License, v. 2.0.
+	You should have received a copy of the MPL along with this library; see the
+	file LICENSE. If not, you can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package github.funsheep.javadiskcache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * Persistent bitmap of the chunks of a chunked cache entry that are present on disk.
+ * The bitmap is stored in a small side file next to the entry. The file starts with the chunk size (int) and the size
+ * of the entry (long), followed by one bit per chunk and the CRC-32C (int) of each chunk. The CRC is written before
+ * the bit, a bit is only set after its chunk is completely written, other jVMs can therefore read chunks as soon as
+ * the corresponding bit is set. Maps of older versions without CRCs get the CRCs of their present chunks when they are
+ * opened.
+ *
+ * @author funsheep
+ */
+class ChunkMap implements Closeable
+{
+
+	private static final int HEADER = 12;
+
+	private final FileChannel chan;
+	private final int chunkSize;
+	private final long size;
+	private final int chunks;
+	private final BitSet present;
+	private final int[] crcs;
+
+
+	private ChunkMap(FileChannel chan, int chunkSize, long size, BitSet present)
+	{
+		this.chan = chan;
+		this.chunkSize = chunkSize;
+		this.size = size;
+		this.chunks = (int)((size + chunkSize - 1) / chunkSize);
+		this.present = present;
+		this.crcs = new int[chunks];
+	}
+
+	int chunkCount()
+	{
+		return this.chunks;
+	}
+
+	long size()
+	{
+		return this.size;
+	}
+
+	long chunkOffset(int chunk)
+	{
+		return (long)chunk * chunkSize;
+	}
+
+	int chunkLength(int chunk)
+	{
+		return (int)Math.min(chunkSize, size - chunkOffset(chunk));
+	}
+
+	int chunkOf(long position)
+	{
+		return (int)(position / chunkSize);
+	}
+
+	synchronized boolean isPresent(int chunk)
+	{
+		return present.get(chunk);
+	}
+
+	/**
+	 * @return The CRC-32C of the given chunk. Only valid if the chunk is present.
+	 */
+	synchronized int crc(int chunk)
+	{
+		return crcs[chunk];
+	}
+
+	/**
+	 * @return The first missing chunk at or after the given chunk or <code>-1</code> if there is none.
+	 */
+	synchronized int nextMissing(int chunk, BitSet exclude)
+	{
+		for (int c = present.nextClearBit(chunk); c < chunks; c = present.nextClearBit(c + 1))
+			if (exclude == null || !exclude.get(c))
+				return c;
+		return -1;
+	}
+
+	/**
+	 * @return The number of bytes of all chunks that are present.
+	 */
+	synchronized long presentBytes()
+	{
+		long bytes = (long)present.cardinality() * chunkSize;
+		if (chunks > 0 && present.get(chunks - 1))
+			bytes -= chunkSize - chunkLength(chunks - 1);
+		return bytes;
+	}
+
+	/**
+	 * Marks the given chunk as present. Has to be called after the chunk has been written completely.
+	 * @param crc The CRC-32C of the content of the chunk.
+	 * @return Whether the map has become complete with the given chunk. Only one caller sees the map become complete.
+	 */
+	synchronized boolean setPresent(int chunk, int crc) throws IOException
+	{
+		final boolean missing = !present.get(chunk);
+		crcs[chunk] = crc;
+		final ByteBuffer value = ByteBuffer.allocate(4);
+		value.putInt(crc).flip();
+		while (value.hasRemaining())
+			chan.write(value, tableOffset() + 4L * chunk + value.position());
+		present.set(chunk);
+		writeByte(chunk >> 3);
+		return missing && present.cardinality() == chunks;
+	}
+
+	/**
+	 * Marks the given chunk as missing, e.g. because its content does not match its CRC.
+	 */
+	synchronized void clear(int chunk) throws IOException
+	{
+		present.clear(chunk);
+		writeByte(chunk >> 3);
+	}
+
+	/**
+	 * Marks all chunks starting with the given chunk as missing.
+	 */
+	synchronized void clearFrom(int chunk) throws IOException
+	{
+		if (chunk >= chunks)
+			return;
+		present.clear(chunk, chunks);
+		for (int i = chunk >> 3; i <= (chunks - 1) >> 3; i++)
+			writeByte(i);
+	}
+
+	private long tableOffset()
+	{
+		return HEADER + ((chunks + 7) >> 3);
+	}
+
+	private void readTable() throws IOException
+	{
+		final ByteBuffer table = ByteBuffer.allocate(4 * chunks);
+		while (table.hasRemaining())
+			if (chan.read(table, tableOffset() + table.position()) < 0)
+				throw new IOException("Truncated chunk map");
+		table.flip();
+		table.asIntBuffer().get(crcs);
+	}
+
+	/**
+	 * Adds the CRCs to a map written by an older version. Chunks that are not completely present in the entry are
+	 * marked as missing.
+	 */
+	private void addTable(FileChannel data) throws IOException
+	{
+		chan.write(ByteBuffer.allocate(4 * chunks), tableOffset());
+		final ByteBuffer buffer = ByteBuffer.allocate(BufferPool.DEFAULT_SIZE);
+		for (int c = present.nextSetBit(0); c >= 0 && c < chunks; c = present.nextSetBit(c + 1))
+		{
+			final long crc = checksum(data, chunkOffset(c), chunkLength(c), buffer);
+			if (crc < 0)
+				this.clear(c);
+			else
+				this.setPresent(c, (int)crc);
+		}
+	}
+
+	private void writeByte(int index) throws IOException
+	{
+		byte b = 0;
+		for (int i = 0; i < 8; i++)
+			if (present.get((index << 3) + i))
+				b |= 1 << i;
+		chan.write(ByteBuffer.wrap(new byte[] { b }), HEADER + index);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		chan.close();
+	}
+
+
+	private static BitSet read(FileChannel chan, int chunks) throws IOException
+	{
+		final ByteBuffer bits = ByteBuffer.allocate((chunks + 7) >> 3);
+		while (bits.hasRemaining())
+			if (chan.read(bits, HEADER + bits.position()) < 0)
+				break;
+		final BitSet set = BitSet.valueOf(bits.array());
+		if (set.length() > chunks)
+			set.clear(chunks, set.length());
+		return set;
+	}
+
+	/**
+	 * Computes the CRC-32C of a part of a file.
+	 * @param buffer A heap buffer to read the file with.
+	 * @return The CRC or <code>-1</code> if the file ends before the end of the part.
+	 */
+	static long checksum(FileChannel file, long offset, int length, ByteBuffer buffer) throws IOException
+	{
+		final Crc32c crc = new Crc32c();
+		int done = 0;
+		while (done < length)
+		{
+			buffer.clear();
+			buffer.limit(Math.min(buffer.capacity(), length - done));
+			final int read = file.read(buffer, offset + done);
+			if (read < 0)
+				return -1;
+			crc.update(buffer.array(), buffer.arrayOffset(), read);
+			done += read;
+		}
+		return crc.getValue() & 0xffffffffL;
+	}
+
+	/**
+	 * Opens the chunk map of an entry. Creates a new one with the given chunk size if none exists.
+	 * An existing map keeps the chunk size it was created with.
+	 *
+	 * @param mapFile The side file of the chunk map.
+	 * @param size The size of the entry.
+	 * @param chunkSize The chunk size used for a new map.
+	 * @param data The entry. The leading bytes of a new map that are already present (e.g. from an earlier monolithic
+	 *            download) are marked as present.
+	 */
+	static ChunkMap open(Path mapFile, long size, int chunkSize, FileChannel data) throws IOException
+	{
+		Files.createDirectories(mapFile.getParent());
+		final FileChannel chan = FileChannel.open(mapFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try
+		{
+			final ByteBuffer header = ByteBuffer.allocate(HEADER);
+			while (header.hasRemaining())
+				if (chan.read(header, header.position()) < 0)
+					break;
+
+			if (header.hasRemaining()) // new map
+			{
+				final ChunkMap map = new ChunkMap(chan, chunkSize, size, new BitSet());
+				header.clear();
+				header.putInt(chunkSize).putLong(size).flip();
+				chan.write(ByteBuffer.allocate(((map.chunks + 7) >> 3) + 4 * map.chunks), HEADER);
+				chan.write(header, 0);
+				final long presentBytes = data.size();
+				final ByteBuffer buffer = ByteBuffer.allocate(BufferPool.DEFAULT_SIZE);
+				for (int c = 0; c < map.chunks && map.chunkOffset(c) + map.chunkLength(c) <= presentBytes; c++)
+					map.setPresent(c, (int)checksum(data, map.chunkOffset(c), map.chunkLength(c), buffer));
+				return map;
+			}
+
+			header.flip();
+			final int storedChunkSize = header.getInt();
+			final long storedSize = header.getLong();
+			if (storedChunkSize <= 0 || storedSize != size)
+				throw new IOException("Corrupt chunk map " + mapFile);
+			final int chunks = (int)((size + storedChunkSize - 1) / storedChunkSize);
+			final ChunkMap map = new ChunkMap(chan, storedChunkSize, size, read(chan, chunks));
+			if (chan.size() < map.tableOffset() + 4L * chunks)
+				map.addTable(data);
+			else
+				map.readTable();
+			return map;
+		}
+		catch (IOException e)
+		{
+			Tools.close(chan);
+			throw e;
+		}
+	}
+
+	/**
+	 * @return The number of bytes present in the entry of the given map file or <code>-1</code> if the map could not be read.
+	 */
+	static long presentBytes(Path mapFile)
+	{
+		FileChannel chan = null;
+		try
+		{
+			chan = FileChannel.open(mapFile, StandardOpenOption.READ);
+			final ByteBuffer header = ByteBuffer.allocate(HEADER);
+			while (header.hasRemaining())
+				if (chan.read(header, header.position()) < 0)
+					return -1;
+			header.flip();
+			final int chunkSize = header.getInt();
+			final long size = header.getLong();
+			if (chunkSize <= 0)
+				return -1;
+			final int chunks = (int)((size + chunkSize - 1) / chunkSize);
+			return new ChunkMap(chan, chunkSize, size, read(chan, chunks)).presentBytes();
+		}
+		catch (IOException e)
+		{
+			return -1;
+		}
+		finally
+		{
+			Tools.close(chan);
+		}
+	}
+
+}
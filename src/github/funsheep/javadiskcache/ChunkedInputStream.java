@@ -0,0 +1,131 @@
+/*
+	This file is part of the java diskcache library.
+	Copyright (C) 2005-2013 funsheep, cgrote
+
+	This library is subject to the terms of the Mozilla Public License, v. 2.0.
+	You should have received a copy of the MPL along with this library; see the
+	file LICENSE. If not, you can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package github.funsheep.javadiskcache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Inputstream for chunked cache entries.
+ * Reads a chunk as soon as the {@link ChunkedLoader} has written it. Skipping does not load the skipped chunks.
+ *
+ * @author funsheep
+ */
+class ChunkedInputStream extends InputStream
+{
+
+	private final ChunkedLoader loader;
+	private long position = 0;
+	private boolean closed = false;
+
+
+	ChunkedInputStream(ChunkedLoader loader)
+	{
+		this.loader = loader;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized int read() throws IOException
+	{
+		final byte[] b = new byte[1];
+		int read;
+		while ((read = this.read(b, 0, 1)) == 0)
+			continue;
+		if (read < 0)
+			return -1;
+		return b[0] & 0xff;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized int read(byte b[]) throws IOException
+	{
+		return this.read(b, 0, b.length);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized int read(byte b[], int off, int len) throws IOException
+	{
+		if (closed)
+			throw new IOException("Stream closed");
+		if (position >= loader.size())
+			return -1;
+		if (len == 0)
+			return 0;
+
+		final int chunk = loader.chunkOf(position);
+		loader.await(chunk);
+
+		final int toRead = (int)Math.min(len, loader.chunkEnd(chunk) - position);
+		final int read = loader.read(position, ByteBuffer.wrap(b, off, toRead));
+		if (read < 0)
+			throw new IOException("Cache file truncated at position " + position);
+		position += read;
+		return read;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized long skip(long n) throws IOException
+	{
+		if (n <= 0)
+			return 0;
+		final long skip = Math.min(n, loader.size() - position);
+		position += skip;
+		return skip;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized int available() throws IOException
+	{
+		if (closed || position >= loader.size())
+			return 0;
+		final int chunk = loader.chunkOf(position);
+		if (!loader.isPresent(chunk))
+			return 0;
+		return (int)Math.min(Integer.MAX_VALUE, loader.chunkEnd(chunk) - position);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (closed)
+			return;
+
+		closed = true;
+		loader.close();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean markSupported()
+	{
+		return false;
+	}
+
+}
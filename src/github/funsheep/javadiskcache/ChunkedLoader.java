@@ -0,0 +1,485 @@
+/*
+	This file is part of the java diskcache library.
+	Copyright (C) 2005-2013 funsheep, cgrote
+
+	This library is subject to the terms of the Mozilla Public License, v. 2.0.
+	You should have received a copy of the MPL along with this library; see the
+	file LICENSE. If not, you can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package github.funsheep.javadiskcache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Fills a chunked cache entry from an {@link IRangeCacheable} source.
+ * Missing chunks are requested in parallel, each chunk with its own range request. A chunk is verified to be complete before it
+ * is marked in the {@link ChunkMap} together with its CRC-32C, a failed chunk is requested again on its own. A chunk that was
+ * not loaded by this loader is checked against its CRC when it is read the first time, a corrupt chunk is loaded again.
+ * Readers wait only for the chunk they actually need, the loader fetches the chunks starting at the position of the last
+ * waiting reader.
+ * A sparse loader only fetches the chunks that are actually read (plus a small read-ahead), skipped parts of the entry are
+ * never requested from the source.
+ *
+ * @author funsheep
+ */
+class ChunkedLoader
+{
+
+	private static final Logger LOGGER = Logger.getLogger();
+	// by the absolute path of the cache file, several caches may load the same source
+	private static final HashMap<String, ChunkedLoader> chunkLoader = new HashMap<String, ChunkedLoader>();
+	private static final int MAX_TRIES = 3;
+
+	private final IRangeCacheable source;
+	private final FileChannel chan;
+	private final ChunkMap map;
+	private final String uid;
+	private final FileLock lock;
+	private final int parallelism;
+	private final BitSet loading = new BitSet();
+	private final BitSet failed = new BitSet();
+	private final BitSet wanted = new BitSet();
+	private final BitSet verified = new BitSet();
+	private final boolean sparse;
+	private final ILoadListener listener;
+	private final BufferPool buffers;
+	private final Executor executor;
+	private final int[] tries;
+
+	private long streamCount = 0;
+	private int workers = 0;
+	private int rejected = 0;
+	private int cursor = 0;
+	private IOException error = null;
+	private volatile boolean closed = false;
+
+
+	private ChunkedLoader(IRangeCacheable source, FileChannel chan, ChunkMap map, String uid, FileLock lock, int parallelism, boolean sparse,
+		ILoadListener listener, BufferPool buffers, Executor executor)
+	{
+		this.source = source;
+		this.chan = chan;
+		this.map = map;
+		this.uid = uid;
+		this.lock = lock;
+		this.parallelism = Math.max(1, parallelism);
+		this.sparse = sparse;
+		this.listener = listener;
+		this.buffers = buffers;
+		this.executor = executor;
+		this.tries = new int[map.chunkCount()];
+	}
+
+	private void start()
+	{
+		synchronized (this)
+		{
+			this.startWorkers();
+		}
+		this.workRejected();
+	}
+
+	long size()
+	{
+		return map.size();
+	}
+
+	int chunkOf(long position)
+	{
+		return map.chunkOf(position);
+	}
+
+	long chunkEnd(int chunk)
+	{
+		return map.chunkOffset(chunk) + map.chunkLength(chunk);
+	}
+
+	boolean isPresent(int chunk)
+	{
+		return map.isPresent(chunk);
+	}
+
+	/**
+	 * Blocks until the given chunk is present and matches its CRC.
+	 * @throws IOException if the chunk could not be loaded or the loader is closed.
+	 */
+	void await(int chunk) throws IOException
+	{
+		do
+			this.awaitPresent(chunk);
+		while (!this.verify(chunk));
+	}
+
+	private void awaitPresent(int chunk) throws IOException
+	{
+		while (true)
+		{
+			synchronized (this)
+			{
+				if (sparse)
+					this.want(chunk);
+				if (map.isPresent(chunk))
+					return;
+				if (failed.get(chunk))
+					throw new IOException("Could not load chunk " + chunk + " of " + source.uID(), error);
+				if (closed)
+					throw new IOException("Loader closed " + source.uID());
+
+				cursor = chunk;
+				startWorkers();
+				if (rejected == 0)
+					try
+					{
+						this.wait();
+					}
+					catch (InterruptedException e)
+					{
+						throw new InterruptedIOException();
+					}
+			}
+			this.workRejected();
+		}
+	}
+
+	/**
+	 * Checks the given present chunk against its CRC, once per loader. A corrupt chunk is marked as missing.
+	 * @return Whether the chunk is valid.
+	 */
+	private boolean verify(int chunk) throws IOException
+	{
+		synchronized (this)
+		{
+			if (verified.get(chunk))
+				return true;
+		}
+
+		final ByteBuffer buffer = buffers.acquire();
+		final long crc;
+		try
+		{
+			crc = ChunkMap.checksum(chan, map.chunkOffset(chunk), map.chunkLength(chunk), buffer);
+		}
+		finally
+		{
+			buffers.release(buffer);
+		}
+
+		synchronized (this)
+		{
+			if (crc == (map.crc(chunk) & 0xffffffffL))
+			{
+				verified.set(chunk);
+				return true;
+			}
+			if (!map.isPresent(chunk))
+				return false; // cleared by another reader in the meantime
+			LOGGER.warn("Corrupt chunk " + chunk + " of " + source.uID() + ", loading it again");
+			map.clear(chunk);
+			if (listener != null)
+				listener.release(map.chunkLength(chunk));
+			if (++tries[chunk] >= MAX_TRIES)
+				failed.set(chunk);
+			return false;
+		}
+	}
+
+	/**
+	 * Reads from the cache file at the given position. The caller has to make sure that the requested bytes are present.
+	 */
+	int read(long position, ByteBuffer dst) throws IOException
+	{
+		return chan.read(dst, position);
+	}
+
+	/**
+	 * Marks the given chunk and the following chunks up to the read-ahead as wanted.
+	 */
+	private void want(int chunk)
+	{
+		final int end = Math.min(map.chunkCount(), chunk + parallelism);
+		boolean added = false;
+		for (int c = chunk; c < end; c++)
+			if (!wanted.get(c) && !map.isPresent(c))
+			{
+				wanted.set(c);
+				added = true;
+			}
+		if (added)
+			startWorkers();
+	}
+
+	private void startWorkers()
+	{
+		while (workers < parallelism && nextChunk() >= 0)
+		{
+			workers++;
+			try
+			{
+				executor.execute(new Runnable()
+				{
+
+					@Override
+					public void run()
+					{
+						ChunkedLoader.this.work();
+					}
+				});
+			}
+			catch (RejectedExecutionException e)
+			{
+				// the cache has been closed, the calling thread loads the chunks after unlocking
+				rejected++;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Runs a worker that could not be handed to the executor in the calling thread. Must not be called while the loader
+	 * is locked.
+	 */
+	private void workRejected()
+	{
+		synchronized (this)
+		{
+			if (rejected == 0)
+				return;
+			rejected--;
+		}
+		this.work();
+	}
+
+	private int nextChunk()
+	{
+		if (closed)
+			return -1;
+
+		if (sparse)
+		{
+			for (int c = wanted.nextSetBit(0); c >= 0; c = wanted.nextSetBit(c + 1))
+				if (!loading.get(c) && !failed.get(c) && !map.isPresent(c))
+					return c;
+			return -1;
+		}
+
+		final BitSet exclude = (BitSet)loading.clone();
+		exclude.or(failed);
+		final int chunk = map.nextMissing(cursor, exclude);
+		if (chunk < 0 && cursor > 0)
+			return map.nextMissing(0, exclude);
+		return chunk;
+	}
+
+	private void work()
+	{
+		while (true)
+		{
+			final int chunk;
+			synchronized (this)
+			{
+				chunk = nextChunk();
+				if (chunk < 0)
+				{
+					workers--;
+					return;
+				}
+				loading.set(chunk);
+			}
+
+			boolean loaded = false;
+			try
+			{
+				this.load(chunk);
+				loaded = true;
+			}
+			catch (IOException e)
+			{
+				if (!closed)
+					LOGGER.warn("Could not load chunk " + chunk + " of " + source.uID(), e);
+				synchronized (this)
+				{
+					error = e;
+				}
+			}
+
+			synchronized (this)
+			{
+				loading.clear(chunk);
+				if (loaded)
+				{
+					wanted.clear(chunk);
+					verified.set(chunk);
+				}
+				else if (++tries[chunk] >= MAX_TRIES)
+					failed.set(chunk);
+				this.notifyAll();
+			}
+		}
+	}
+
+	private void load(int chunk) throws IOException
+	{
+		final int length = map.chunkLength(chunk);
+		if (listener != null)
+			listener.reserve(length);
+		boolean loaded = false;
+		final boolean complete;
+		try
+		{
+			complete = map.setPresent(chunk, this.fetch(chunk));
+			loaded = true;
+		}
+		finally
+		{
+			if (!loaded && listener != null)
+				listener.release(length);
+		}
+		if (listener != null)
+		{
+			listener.written(length);
+			if (complete)
+				listener.complete();
+		}
+	}
+
+	/**
+	 * Writes the content of the given chunk to the cache file.
+	 * @return The CRC-32C of the content.
+	 */
+	private int fetch(int chunk) throws IOException
+	{
+		final long offset = map.chunkOffset(chunk);
+		final int length = map.chunkLength(chunk);
+		final InputStream in = source.requestContent(offset, length);
+		if (in == null)
+			throw new IOException("No content available for " + source.uID());
+
+		final ByteBuffer buffer = buffers.acquire();
+		final Crc32c crc = new Crc32c();
+		try
+		{
+			final byte[] b = buffer.array();
+			final int off = buffer.arrayOffset();
+			int written = 0;
+			while (written < length && !closed)
+			{
+				final int read = in.read(b, off, Math.min(buffer.capacity(), length - written));
+				if (read < 0)
+					break;
+
+				crc.update(b, off, read);
+				buffer.clear();
+				buffer.limit(read);
+				while (buffer.hasRemaining())
+					written += chan.write(buffer, offset + written);
+			}
+
+			if (written < length)
+				throw new IOException("Incomplete chunk " + chunk + " of " + source.uID() + ": " + written + " of " + length + " bytes");
+		}
+		finally
+		{
+			buffers.release(buffer);
+			Tools.close(in);
+		}
+		return (int)crc.getValue();
+	}
+
+	void close() throws IOException
+	{
+		synchronized (chunkLoader)
+		{
+			if (--streamCount > 0)
+				return;
+			chunkLoader.remove(uid);
+		}
+
+		synchronized (this)
+		{
+			closed = true;
+			this.notifyAll();
+		}
+
+		release(chan, map, lock);
+	}
+
+	private static void release(FileChannel chan, ChunkMap map, FileLock lock) throws IOException
+	{
+		Tools.close(chan);
+		Tools.close(map);
+		try
+		{
+			lock.release();
+		}
+		finally
+		{
+			Tools.close(lock.channel());
+		}
+	}
+
+	/**
+	 * Returns the loader for the given entry. Creates a new loader if none exists, otherwise the
+	 * given channel, map and lock are released.
+	 * @param lock The write lock of the entry. Released when the loader is closed.
+	 * @param sparse Whether only the chunks that are read should be loaded.
+	 * @param listener Notified about the chunks written or <code>null</code>.
+	 * @param buffers The pool of heap buffers to load and check the chunks with.
+	 * @param executor Runs the workers that load the chunks.
+	 */
+	static ChunkedLoader getLoader(IRangeCacheable source, FileChannel chan, ChunkMap map, String uid, FileLock lock, int parallelism,
+		boolean sparse, ILoadListener listener, BufferPool buffers, Executor executor)
+	{
+		final ChunkedLoader loader;
+		final boolean created;
+		synchronized (chunkLoader)
+		{
+			final ChunkedLoader existing = chunkLoader.get(uid);
+			created = existing == null;
+			if (created)
+			{
+				loader = new ChunkedLoader(source, chan, map, uid, lock, parallelism, sparse, listener, buffers, executor);
+				chunkLoader.put(uid, loader);
+			}
+			else
+				loader = existing;
+			loader.streamCount++;
+		}
+		if (created)
+		{
+			loader.start();
+			return loader;
+		}
+		try
+		{
+			release(chan, map, lock); // created by another stream in the meantime
+		}
+		catch (IOException e)
+		{
+			LOGGER.warn("Could not release the lock of " + uid, e);
+		}
+		return loader;
+	}
+
+	static ChunkedLoader getLoader(String uid)
+	{
+		synchronized (chunkLoader)
+		{
+			final ChunkedLoader loader = chunkLoader.get(uid);
+
+			if (loader != null)
+				loader.streamCount++;
+
+			return loader;
+		}
+	}
+
+}
@@ -0,0 +1,447 @@
+/*
+	This file is part of the java diskcache library.
+	Copyright (C) 2005-2013 funsheep, cgrote
+
+	This library is subject to the terms of the Mozilla Public License, v. 2.0.
+	You should have received a copy of the MPL along with this library; see the
+	file LICENSE. If not, you can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package github.funsheep.javadiskcache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Byte channel on a compressed cache entry. Provides the uncompressed content, the cache file stores it in frames of
+ * {@link #FRAME} bytes that are compressed independently (Deflate). Random access therefore only has to decompress a
+ * single frame. Frames that do not compress well are stored uncompressed. After some incompressible frames in a row,
+ * only every {@link #PROBE}th frame is probed for compression.
+ * <p>
+ * The frame index is stored in a side file. Each frame has a record with its offset in the cache file, its stored length and
+ * its uncompressed length. A record is appended after its frame has been written, other jVMs therefore only see complete frames.
+ * All frames except the last one have the full uncompressed size. Writing is only supported at the end of the content, when
+ * appending to a short last frame, the frame is written again at the end of the cache file.
+ *
+ * @author funsheep
+ */
+class CompressedChannel implements SeekableByteChannel
+{
+
+	/** Uncompressed size of a frame. */
+	static final int FRAME = 64 * 1024;
+	/** Probe interval for incompressible content. */
+	static final int PROBE = 16;
+
+	private static final int RECORD = 16;
+
+	private final FileChannel data;
+	private final FileChannel index;
+	private final boolean writable;
+
+	private long[] offsets = new long[16];
+	private int[] stored = new int[16];
+	private int[] raw = new int[16];
+	private int frames = 0;
+	private long length = 0;
+	private long dataEnd = 0;
+
+	private final byte[] pending;
+	private int pendingLength = 0;
+	private final byte[] compressed;
+	private final byte[] decoded = new byte[FRAME];
+	private int decodedFrame = -1;
+	private Deflater deflater;
+	private Inflater inflater;
+	private int incompressible = 0;
+
+	private long position = 0;
+	private boolean closed = false;
+
+
+	private CompressedChannel(FileChannel data, FileChannel index, boolean writable) throws IOException
+	{
+		this.data = data;
+		this.index = index;
+		this.writable = writable;
+		this.pending = writable ? new byte[FRAME] : null;
+		this.compressed = new byte[FRAME];
+		this.readIndex();
+
+		if (writable)
+		{
+			if (data.size() > dataEnd) // drop a partially written frame
+				data.truncate(dataEnd);
+
+			if (frames > 0 && raw[frames - 1] < FRAME) // continue the short last frame
+			{
+				this.decode(frames - 1);
+				pendingLength = raw[frames - 1];
+				System.arraycopy(decoded, 0, pending, 0, pendingLength);
+				this.removeLastFrame();
+				index.truncate((long)frames * RECORD);
+			}
+		}
+	}
+
+	private void readIndex() throws IOException
+	{
+		if (frames > 0 && raw[frames - 1] < FRAME) // the short last frame may have been written again
+			this.removeLastFrame();
+
+		final long count = index.size() / RECORD;
+		if (count <= frames)
+			return;
+
+		final ByteBuffer records = ByteBuffer.allocate((int)(count - frames) * RECORD);
+		while (records.hasRemaining())
+			if (index.read(records, (long)frames * RECORD + records.position()) < 0)
+				break;
+		records.flip();
+		while (records.remaining() >= RECORD)
+			this.addFrame(records.getLong(), records.getInt(), records.getInt());
+	}
+
+	private void addFrame(long offset, int storedLength, int rawLength)
+	{
+		if (frames == offsets.length)
+		{
+			offsets = Arrays.copyOf(offsets, frames * 2);
+			stored = Arrays.copyOf(stored, frames * 2);
+			raw = Arrays.copyOf(raw, frames * 2);
+		}
+		offsets[frames] = offset;
+		stored[frames] = storedLength;
+		raw[frames] = rawLength;
+		frames++;
+		length += rawLength;
+		dataEnd = Math.max(dataEnd, offset + storedLength);
+	}
+
+	private void removeLastFrame()
+	{
+		frames--;
+		length -= raw[frames];
+		if (decodedFrame == frames)
+			decodedFrame = -1;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized int read(ByteBuffer dst) throws IOException
+	{
+		final int read = this.read(dst, position);
+		if (read > 0)
+			position += read;
+		return read;
+	}
+
+	/**
+	 * Reads from the given position without changing the position of this channel.
+	 */
+	synchronized int read(ByteBuffer dst, long pos) throws IOException
+	{
+		ensureOpen();
+		if (pos >= length + pendingLength && !writable)
+			this.readIndex(); // written by another jVM?
+
+		if (pos >= length + pendingLength)
+			return -1;
+
+		if (pos >= length) // not yet written frame
+		{
+			final int read = (int)Math.min(dst.remaining(), length + pendingLength - pos);
+			dst.put(pending, (int)(pos - length), read);
+			return read;
+		}
+
+		final int frame = (int)(pos / FRAME);
+		final int offset = (int)(pos % FRAME);
+		this.decode(frame);
+		final int read = Math.min(dst.remaining(), raw[frame] - offset);
+		dst.put(decoded, offset, read);
+		return read;
+	}
+
+	private void decode(int frame) throws IOException
+	{
+		if (frame == decodedFrame)
+			return;
+
+		decodedFrame = -1;
+		final boolean isRaw = stored[frame] == raw[frame];
+		final ByteBuffer buf = ByteBuffer.wrap(isRaw ? decoded : compressed, 0, stored[frame]);
+		while (buf.hasRemaining())
+			if (data.read(buf, offsets[frame] + buf.position()) < 0)
+				throw new IOException("Compressed cache file truncated");
+
+		if (!isRaw)
+		{
+			if (inflater == null)
+				inflater = new Inflater();
+			inflater.reset();
+			inflater.setInput(compressed, 0, stored[frame]);
+			try
+			{
+				if (inflater.inflate(decoded, 0, raw[frame]) != raw[frame])
+					throw new IOException("Corrupt frame " + frame + " in compressed cache file");
+			}
+			catch (DataFormatException e)
+			{
+				throw new IOException("Corrupt frame " + frame + " in compressed cache file", e);
+			}
+		}
+		decodedFrame = frame;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized int write(ByteBuffer src) throws IOException
+	{
+		ensureOpen();
+		if (!writable)
+			throw new NonWritableChannelException();
+		if (position != length + pendingLength)
+			throw new IOException("Compressed cache files only support appending");
+
+		final int written = src.remaining();
+		while (src.hasRemaining())
+		{
+			final int toCopy = Math.min(src.remaining(), FRAME - pendingLength);
+			src.get(pending, pendingLength, toCopy);
+			pendingLength += toCopy;
+			if (pendingLength == FRAME)
+				this.flushFrame();
+		}
+		position += written;
+		return written;
+	}
+
+	private void flushFrame() throws IOException
+	{
+		if (pendingLength == 0)
+			return;
+
+		int storedLength = pendingLength;
+		byte[] frame = pending;
+		if (incompressible < PROBE / 4 || frames % PROBE == 0)
+		{
+			if (deflater == null)
+				deflater = new Deflater(Deflater.BEST_SPEED);
+			deflater.reset();
+			deflater.setInput(pending, 0, pendingLength);
+			deflater.finish();
+			// worth it only if the frame shrinks to less than 7/8
+			final int limit = pendingLength - pendingLength / 8;
+			int len = 0;
+			while (!deflater.finished() && len < limit)
+				len += deflater.deflate(compressed, len, limit - len);
+			if (deflater.finished() && len < limit)
+			{
+				storedLength = len;
+				frame = compressed;
+				incompressible = 0;
+			}
+			else
+				incompressible++;
+		}
+
+		final ByteBuffer buf = ByteBuffer.wrap(frame, 0, storedLength);
+		while (buf.hasRemaining())
+			data.write(buf, dataEnd + buf.position());
+
+		final ByteBuffer record = ByteBuffer.allocate(RECORD);
+		record.putLong(dataEnd).putInt(storedLength).putInt(pendingLength).flip();
+		while (record.hasRemaining())
+			index.write(record, (long)frames * RECORD + record.position());
+
+		this.addFrame(dataEnd, storedLength, pendingLength);
+		pendingLength = 0;
+	}
+
+	/**
+	 * Writes the last frame. Has to be called when the content is complete, before other channels
+	 * read the cache file.
+	 */
+	synchronized void finish() throws IOException
+	{
+		ensureOpen();
+		if (writable)
+			this.flushFrame();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized long position() throws IOException
+	{
+		ensureOpen();
+		return position;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized SeekableByteChannel position(long newPosition) throws IOException
+	{
+		ensureOpen();
+		if (newPosition < 0)
+			throw new IllegalArgumentException();
+		position = newPosition;
+		return this;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized long size() throws IOException
+	{
+		ensureOpen();
+		if (!writable)
+			this.readIndex();
+		return length + pendingLength;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized SeekableByteChannel truncate(long size) throws IOException
+	{
+		ensureOpen();
+		if (size < length + pendingLength)
+			throw new IOException("Compressed cache files can not be truncated");
+		if (position > size)
+			position = size;
+		return this;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized boolean isOpen()
+	{
+		return !closed;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (closed)
+			return;
+
+		try
+		{
+			if (writable)
+				this.flushFrame();
+		}
+		finally
+		{
+			closed = true;
+			if (deflater != null)
+				deflater.end();
+			if (inflater != null)
+				inflater.end();
+			Tools.close(data);
+			Tools.close(index);
+		}
+	}
+
+	private void ensureOpen() throws IOException
+	{
+		if (closed)
+			throw new ClosedChannelException();
+	}
+
+
+	/**
+	 * Opens a compressed cache file.
+	 * @param file The cache file.
+	 * @param indexFile The side file with the frame index.
+	 * @param writable Whether content should be appended.
+	 */
+	static CompressedChannel open(Path file, Path indexFile, boolean writable) throws IOException
+	{
+		final FileChannel data = writable ? FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE) : FileChannel.open(file,
+			StandardOpenOption.READ);
+		FileChannel index = null;
+		try
+		{
+			index = writable ? FileChannel.open(indexFile, StandardOpenOption.READ, StandardOpenOption.WRITE) : FileChannel.open(indexFile,
+				StandardOpenOption.READ);
+			return new CompressedChannel(data, index, writable);
+		}
+		catch (IOException e)
+		{
+			Tools.close(data);
+			Tools.close(index);
+			throw e;
+		}
+	}
+
+	/**
+	 * Creates an empty frame index, which marks the cache file as compressed.
+	 */
+	static void create(Path indexFile) throws IOException
+	{
+		Files.createDirectories(indexFile.getParent());
+		Files.deleteIfExists(indexFile);
+		Files.createFile(indexFile);
+	}
+
+	/**
+	 * @return The uncompressed length of all frames written to the given compressed cache file or <code>-1</code> if the index
+	 *         could not be read.
+	 */
+	static long length(Path indexFile)
+	{
+		FileChannel index = null;
+		try
+		{
+			index = FileChannel.open(indexFile, StandardOpenOption.READ);
+			final long count = index.size() / RECORD;
+			if (count == 0)
+				return 0;
+
+			final ByteBuffer record = ByteBuffer.allocate(RECORD);
+			while (record.hasRemaining())
+				if (index.read(record, (count - 1) * RECORD + record.position()) < 0)
+					return -1;
+			record.flip();
+			record.getLong();
+			record.getInt();
+			final int rawLength = record.getInt();
+			return (count - 1) * FRAME + rawLength;
+		}
+		catch (IOException e)
+		{
+			return -1;
+		}
+		finally
+		{
+			Tools.close(index);
+		}
+	}
+
+}
@@ -0,0 +1,89 @@
+/*
+	This file is part of the java diskcache library.
+	Copyright (C) 2005-2013 funsheep, cgrote
+
+	This library is subject to the terms of the Mozilla Public License, v. 2.0.
+	You should have received a copy of the MPL along with this library; see the
+	file LICENSE. If not, you can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package github.funsheep.javadiskcache;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli) checksum. Table driven implementation that processes eight bytes per step (slicing-by-8).
+ *
+ * @author funsheep
+ */
+class Crc32c implements Checksum
+{
+
+	private static final int[][] TABLE = new int[8][256];
+
+	static
+	{
+		for (int n = 0; n < 256; n++)
+		{
+			int c = n;
+			for (int k = 0; k < 8; k++)
+				c = (c & 1) != 0 ? (c >>> 1) ^ 0x82F63B78 : c >>> 1;
+			TABLE[0][n] = c;
+		}
+		for (int n = 0; n < 256; n++)
+			for (int k = 1; k < 8; k++)
+				TABLE[k][n] = (TABLE[k - 1][n] >>> 8) ^ TABLE[0][TABLE[k - 1][n] & 0xff];
+	}
+
+	private int crc = 0xffffffff;
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void update(int b)
+	{
+		crc = (crc >>> 8) ^ TABLE[0][(crc ^ b) & 0xff];
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void update(byte[] b, int off, int len)
+	{
+		final int[] t0 = TABLE[0], t1 = TABLE[1], t2 = TABLE[2], t3 = TABLE[3];
+		final int[] t4 = TABLE[4], t5 = TABLE[5], t6 = TABLE[6], t7 = TABLE[7];
+		int c = crc;
+		while (len >= 8)
+		{
+			c ^= (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+			c = t7[c & 0xff] ^ t6[(c >>> 8) & 0xff] ^ t5[(c >>> 16) & 0xff] ^ t4[c >>> 24]
+				^ t3[b[off + 4] & 0xff] ^ t2[b[off + 5] & 0xff] ^ t1[b[off + 6] & 0xff] ^ t0[b[off + 7] & 0xff];
+			off += 8;
+			len -= 8;
+		}
+		while (len-- > 0)
+			c = (c >>> 8) ^ t0[(c ^ b[off++]) & 0xff];
+		crc = c;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getValue()
+	{
+		return ~crc & 0xffffffffL;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void reset()
+	{
+		crc = 0xffffffff;
+	}
+
+}
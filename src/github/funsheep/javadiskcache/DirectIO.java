@@ -0,0 +1,148 @@
+/*
+	This file is part of the java diskcache library.
+	Copyright (C) 2005-2013 funsheep, cgrote
+
+	This library is subject to the terms of the Mozilla Public License, v. 2.0.
+	You should have received a copy of the MPL along with this library; see the
+	file LICENSE. If not, you can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package github.funsheep.javadiskcache;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Access to direct I/O, which bypasses the page cache of the operating system.
+ * Direct I/O is available on JREs that provide <code>com.sun.nio.file.ExtendedOpenOption.DIRECT</code> (Java 10 and later)
+ * and on file systems that support it. It is looked up at runtime, on all other JREs direct I/O is not supported.
+ * Direct I/O requires buffers, positions and lengths aligned to the block size of the file system.
+ *
+ * @author funsheep
+ */
+class DirectIO
+{
+
+	private static final Logger LOGGER = Logger.getLogger();
+
+	/** Block size assumed if the file system does not tell. */
+	static final int DEFAULT_BLOCK_SIZE = 4096;
+
+	private static final OpenOption DIRECT = directOption();
+	private static final Method ALIGNED_SLICE = method(ByteBuffer.class, "alignedSlice", int.class);
+	private static final Method BLOCK_SIZE = method(FileStore.class, "getBlockSize");
+
+
+	private DirectIO()
+	{
+		// no instance
+	}
+
+	/**
+	 * @return Whether the JRE supports direct I/O.
+	 */
+	static boolean isSupported()
+	{
+		return DIRECT != null && ALIGNED_SLICE != null;
+	}
+
+	/**
+	 * Opens the given file for writing with direct I/O.
+	 * @return The channel or <code>null</code> if direct I/O is not supported for the file.
+	 */
+	static FileChannel open(Path file)
+	{
+		if (!isSupported())
+			return null;
+		try
+		{
+			return FileChannel.open(file, StandardOpenOption.WRITE, DIRECT);
+		}
+		catch (IOException e)
+		{
+			LOGGER.info("Direct I/O not supported for " + file + ": " + e.getMessage());
+			return null;
+		}
+		catch (UnsupportedOperationException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * @return The block size of the file system of the given file.
+	 */
+	static int blockSize(Path file)
+	{
+		if (BLOCK_SIZE == null)
+			return DEFAULT_BLOCK_SIZE;
+		try
+		{
+			final long size = ((Long)BLOCK_SIZE.invoke(Files.getFileStore(file))).longValue();
+			return size > 0 && size <= Integer.MAX_VALUE ? (int)size : DEFAULT_BLOCK_SIZE;
+		}
+		catch (Exception e)
+		{
+			return DEFAULT_BLOCK_SIZE;
+		}
+	}
+
+	/**
+	 * Allocates a direct buffer whose address is aligned to the given alignment.
+	 * @return The buffer or <code>null</code> if aligned buffers are not supported.
+	 */
+	static ByteBuffer allocate(int size, int alignment)
+	{
+		if (ALIGNED_SLICE == null)
+			return null;
+		try
+		{
+			final ByteBuffer aligned = (ByteBuffer)ALIGNED_SLICE.invoke(ByteBuffer.allocateDirect(size + alignment), Integer.valueOf(alignment));
+			aligned.limit(size);
+			return aligned.slice();
+		}
+		catch (Exception e)
+		{
+			return null;
+		}
+	}
+
+	private static OpenOption directOption()
+	{
+		try
+		{
+			final Class<?> options = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+			for (Object option : options.getEnumConstants())
+				if ("DIRECT".equals(((Enum<?>)option).name()))
+					return (OpenOption)option;
+		}
+		catch (ClassNotFoundException e)
+		{
+			// not supported
+		}
+		catch (RuntimeException e)
+		{
+			// not supported
+		}
+		return null;
+	}
+
+	private static Method method(Class<?> clazz, String name, Class<?>... parameters)
+	{
+		try
+		{
+			return clazz.getMethod(name, parameters);
+		}
+		catch (NoSuchMethodException e)
+		{
+			return null;
+		}
+	}
+
+}
@@ -11,7 +11,6 @@ package github.funsheep.javadiskcache;
 import java.io.Closeable;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
-import java.nio.file.FileSystems;
 import java.nio.file.FileVisitOption;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -19,246 +18,207 @@ import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardWatchEventKinds;
-import java.nio.file.WatchEvent;
 import java.nio.file.WatchEvent.Kind;
-import java.nio.file.WatchKey;
-import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This class provides various methods to determine the content of a directory. It can constantly
  * watch a directory for changes or just scan on demand to get its content. This class is
  * complete Thread-safe and makes sure a directory is only registered once to a watch service.
+ * The watchers and scans of this class share their threads with all others of the process.
  *
  * @author cgrote
  */
 public final class DirectoryContent implements Closeable
 {
 	private static final Logger LOGGER = Logger.getLogger();
-	private static final ExecutorService threadPool = Executors.newCachedThreadPool();
+	private static final ExecutorService threadPool = Executors.newCachedThreadPool(Tools.daemonThreads("diskcache-content"));
 	private static final WeakHashMap<Object, WeakReference<DirectoryContent>> dirWatcher = new WeakHashMap<Object, WeakReference<DirectoryContent>>();
 
 	private final ReentrantLock contentLock = new ReentrantLock();
-	private final ReentrantLock absoluteLock = new ReentrantLock();
-	private final HashSet<Path> dirContent = new HashSet<Path>();
-	private final HashMap<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+	private final PathTable dirContent = new PathTable();
+	private final CopyOnWriteArrayList<IChangeListener> listeners = new CopyOnWriteArrayList<IChangeListener>();
+	private final WatchDispatcher dispatcher;
+	private final ForkJoinPool scanPool;
 	private final boolean recursive;
-	private final Future< ? > future;
+	private final boolean useMultipleThreads;
 	private final Path _directory;
 
 	private int closeCount = 0;
-	private boolean threadReady = false;
-	private WatchService watcher;
 
-	private DirectoryContent(final Path directory, final boolean recursive, final boolean useMultipleThreads)
-	{
-		this.recursive = recursive;
-		this._directory = directory.normalize();
-
-		try
+	private final WatchDispatcher.ISubscriber subscriber = new WatchDispatcher.ISubscriber()
 		{
-			watcher = FileSystems.getDefault().newWatchService();
-		} catch (IOException e)
-		{
-			LOGGER.warn("IO Error while accessing " + directory, e);
-			future = null;
-			return;
-		}
-		updateDirectoryContent(directory);
-
-		future = threadPool.submit(new Runnable()
+			@Override
+			public void changed(Path directory, Kind< ? > kind, final Path child)
 			{
-				@Override
-				public void run()
+				if (kind == StandardWatchEventKinds.ENTRY_CREATE)
 				{
-					absoluteLock.lock();
-					DirectoryContent.this.setReady();
-
-					while (true)
+					if (recursive && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS))
 					{
-						// wait for key to be signaled
-						WatchKey key;
-						try
-						{
-							key = watcher.poll();
-							if (key == null)
-							{
-								absoluteLock.unlock();
-								key = watcher.take();
-								absoluteLock.lock();
-							}
-						} catch (final InterruptedException e)
-						{
-
-							return;
-						}
-
-						for (final WatchEvent< ? > event : key.pollEvents())
-						{
-							final Kind< ? > kind = event.kind();
-							if (kind == StandardWatchEventKinds.OVERFLOW)
-							{
-
-								updateDirectoryContent(directory);
-
-							} else
-							{
-								Path dir;
-								synchronized (keys)
-								{
-									dir = keys.get(key);
-								}
-								if (dir == null)
+						if (useMultipleThreads)
+							threadPool.execute(new Runnable()
 								{
-									LOGGER.warn("Unknown Watchkey " + key);
-									continue;
-								}
 
-								@SuppressWarnings("unchecked")
-								final WatchEvent<Path> ev = (WatchEvent<Path>)event;
-								final Path child = dir.resolve(ev.context());
-
-								if (kind == StandardWatchEventKinds.ENTRY_CREATE)
-
-								{
-									if (recursive && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS))
-									{
-										if (useMultipleThreads)
-											threadPool.execute(new Runnable()
-												{
-
-													@Override
-													public void run()
-													{
-														updateDirectoryContent(child);
-													}
-												});
-										else
-											updateDirectoryContent(child);
-									} else if (!Files.isSymbolicLink(child))
-									{
-										updateContent(child);
-									}
-								} else if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS))
-								{
-									// nothing
-								} else if (kind == StandardWatchEventKinds.ENTRY_DELETE)
-								{
-									if (!Files.isSymbolicLink(child))
+									@Override
+									public void run()
 									{
-										removeContent(child);
+										updateDirectoryContent(child, true);
 									}
-								}
-
-							}
-
-							final boolean valid = key.reset();
-							if (!valid)
-							{
-								synchronized (keys)
-								{
-									keys.remove(key);
-								}
-
-								break;
-							}
-
-						}
+								});
+						else
+							updateDirectoryContent(child, true);
+					} else if (!Files.isSymbolicLink(child))
+					{
+						updateContent(child);
+					}
+				} else if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS))
+				{
+					// nothing
+				} else if (kind == StandardWatchEventKinds.ENTRY_DELETE)
+				{
+					if (!Files.isSymbolicLink(child))
+					{
+						removeContent(child);
 					}
 				}
-			});
+			}
 
-		while (!future.isDone() && !threadReady)
-			Thread.yield();
-	}
+			@Override
+			public void rescan(Path directory)
+			{
+				updateDirectoryContent(directory, false);
+			}
+		};
 
-	private void setReady()
+	private DirectoryContent(final Path directory, final boolean recursive, final boolean useMultipleThreads, WatchDispatcher dispatcher,
+		ForkJoinPool scanPool)
 	{
-		threadReady = true;
+		this.dispatcher = dispatcher;
+		this.scanPool = scanPool;
+		this.recursive = recursive;
+		this.useMultipleThreads = useMultipleThreads;
+		this._directory = directory.normalize();
+		updateDirectoryContent(_directory, true);
 	}
 
 	private void updateContent(Path file)
 	{
 		contentLock.lock();
-		dirContent.add(file.normalize());
+		final boolean added = dirContent.put(this.name(file), 0) == PathTable.NOT_FOUND;
 		contentLock.unlock();
+		if (added)
+			for (IChangeListener listener : listeners)
+				listener.added(file);
 	}
 
 	private void removeContent(Path file)
 	{
 		contentLock.lock();
-		dirContent.remove(file.normalize());
+		final boolean removed = dirContent.remove(this.name(file)) != PathTable.NOT_FOUND;
 		contentLock.unlock();
+		if (removed)
+			for (IChangeListener listener : listeners)
+				listener.removed(file);
 	}
 
-	private void updateDirectoryContent(final Path directory)
+	/**
+	 * @return The key of the given file in the content table, its path relative to the watched directory.
+	 */
+	private String name(Path file)
 	{
-		final HashSet<Path> files = new HashSet<Path>();
+		return _directory.relativize(file.normalize()).toString();
+	}
 
-		try
-		{
-			Files.walkFileTree(directory, Collections.<FileVisitOption> emptySet(), recursive ? Integer.MAX_VALUE : 1,
-				new SimpleFileVisitor<Path>()
-					{
-						@Override
-						public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attr)
-						{
-							try
-							{
-								WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
-									StandardWatchEventKinds.ENTRY_DELETE);
-								synchronized (keys)
-								{
-									keys.put(key, dir);
-								}
-							} catch (IOException e)
-							{
-								LOGGER.warn("IO error while accessing " + dir, e);
-							}
+	/**
+	 * Scans the given directory and watches it. Content of the directory that no longer exists is removed.
+	 * @param deep Whether all sub-directories are scanned, otherwise only the ones that are not watched yet.
+	 */
+	private void updateDirectoryContent(final Path directory, final boolean deep)
+	{
+		final Set<String> files = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
-							return FileVisitResult.CONTINUE;
-						}
+		final boolean scanned = DirectoryScanner.scan(scanPool, directory, recursive && deep ? Integer.MAX_VALUE : 1, new DirectoryScanner.IVisitor()
+			{
+				@Override
+				public void directory(Path dir)
+				{
+					try
+					{
+						dispatcher.register(dir, subscriber, StandardWatchEventKinds.ENTRY_CREATE,
+							StandardWatchEventKinds.ENTRY_DELETE);
+					} catch (IOException e)
+					{
+						LOGGER.warn("IO error while accessing " + dir, e);
+					}
+				}
 
-						@Override
-						public FileVisitResult visitFileFailed(Path file, IOException exc)
-						{
-							if (Files.notExists(file, LinkOption.NOFOLLOW_LINKS))
-								removeContent(file);
-							return FileVisitResult.CONTINUE;
-						}
+				@Override
+				public void failed(Path file, IOException exc)
+				{
+					if (Files.notExists(file, LinkOption.NOFOLLOW_LINKS))
+						removeContent(file);
+				}
 
-						@Override
-						public FileVisitResult visitFile(Path file, BasicFileAttributes attr)
-						{
-							if (attr.isRegularFile())
-							{
-								updateContent(file);
-							}
-							files.add(file);
-							return FileVisitResult.CONTINUE;
-						}
-					});
-		} catch (IOException e)
-		{
-			LOGGER.warn("IO error while scanning " + directory, e);
+				@Override
+				public void file(Path file, BasicFileAttributes attr)
+				{
+					if (attr.isRegularFile())
+					{
+						updateContent(file);
+					}
+					else if (recursive && attr.isDirectory() && !dispatcher.isRegistered(file, subscriber))
+					{
+						updateDirectoryContent(file, true); // created while events were lost
+					}
+					files.add(name(file));
+				}
+			});
+		if (!scanned)
 			return;
-		}
 
+		final String prefix = name(directory);
+		final ArrayList<String> removed = new ArrayList<String>();
 		contentLock.lock();
-		dirContent.retainAll(files);
-		contentLock.unlock();
+		try
+		{
+			if (deep && prefix.isEmpty() && listeners.isEmpty())
+			{
+				dirContent.retainAll(files);
+				return;
+			}
+			dirContent.visit(new PathTable.IVisitor()
+				{
+					@Override
+					public boolean visit(String name, long value)
+					{
+						if (WatchDispatcher.contains(prefix, name, deep) && !files.contains(name))
+							removed.add(name);
+						return true;
+					}
+				});
+			for (String name : removed)
+				dirContent.remove(name);
+		} finally
+		{
+			contentLock.unlock();
+		}
+		for (String name : removed)
+			for (IChangeListener listener : listeners)
+				listener.removed(_directory.resolve(name));
 	}
 
 	/**
@@ -283,7 +243,8 @@ public final class DirectoryContent implements Closeable
 
 			if (ref == null || (watcher = ref.get()) == null)
 			{
-				watcher = new DirectoryContent(directory, recursive, useMultipleWatchThreads);
+				watcher = new DirectoryContent(directory, recursive, useMultipleWatchThreads, WatchDispatcher.shared(),
+					DirectoryScanner.shared());
 				dirWatcher.put(watcher, new WeakReference<DirectoryContent>(watcher));
 			}
 			watcher.closeCount++;
@@ -291,6 +252,17 @@ public final class DirectoryContent implements Closeable
 		return watcher;
 	}
 
+	/**
+	 * @return a watcher of the given directory that is not shared with other callers and uses the
+	 *         given dispatcher and scan pool. Use the close() method to stop watching the directory.
+	 */
+	static DirectoryContent getWatcher(Path directory, WatchDispatcher dispatcher, ForkJoinPool scanPool)
+	{
+		final DirectoryContent watcher = new DirectoryContent(directory, false, false, dispatcher, scanPool);
+		watcher.closeCount++;
+		return watcher;
+	}
+
 	/**
 	 * Determines the current content of the watched directory in bytes. </p> Note: Use the
 	 * getActualContent() method to make sure all queued changes are processed.
@@ -299,7 +271,24 @@ public final class DirectoryContent implements Closeable
 	 */
 	public ArrayDeque<Path> getContent()
 	{
-		return new ArrayDeque<Path>(dirContent);
+		final ArrayDeque<Path> content = new ArrayDeque<Path>(dirContent.size());
+		contentLock.lock();
+		try
+		{
+			dirContent.visit(new PathTable.IVisitor()
+				{
+					@Override
+					public boolean visit(String name, long value)
+					{
+						content.add(_directory.resolve(name));
+						return true;
+					}
+				});
+		} finally
+		{
+			contentLock.unlock();
+		}
+		return content;
 	}
 
 	/**
@@ -312,10 +301,40 @@ public final class DirectoryContent implements Closeable
 	 */
 	public ArrayDeque<Path> getActualContent()
 	{
-		absoluteLock.lock();
-		ArrayDeque<Path> content = new ArrayDeque<Path>(dirContent);
-		absoluteLock.unlock();
-		return content;
+		dispatcher.lock();
+		try
+		{
+			return this.getContent();
+		} finally
+		{
+			dispatcher.unlock();
+		}
+	}
+
+	/**
+	 * Visits the current content of the watched directory without copying it. Like the
+	 * getActualContent() method, this will make sure all queued changes are processed first. The
+	 * watcher does not process changes while the content is visited.
+	 */
+	public void visitActualContent(final IVisitor visitor)
+	{
+		dispatcher.lock();
+		contentLock.lock();
+		try
+		{
+			dirContent.visit(new PathTable.IVisitor()
+				{
+					@Override
+					public boolean visit(String name, long value)
+					{
+						return visitor.visit(_directory.resolve(name));
+					}
+				});
+		} finally
+		{
+			contentLock.unlock();
+			dispatcher.unlock();
+		}
 	}
 
 	/**
@@ -444,10 +463,10 @@ public final class DirectoryContent implements Closeable
 		{
 			if (--closeCount > 0)
 				return;
-			future.cancel(true);
-			keys.clear();
+			dispatcher.cancel(subscriber);
+			contentLock.lock();
 			dirContent.clear();
-			watcher.close();
+			contentLock.unlock();
 		}
 	}
 
@@ -467,6 +486,46 @@ public final class DirectoryContent implements Closeable
 		return o._directory.equals(this._directory) && o.recursive == this.recursive;
 	}
 
+	/**
+	 * Adds a listener that is notified about the files added to or removed from the content of
+	 * the watched directory.
+	 */
+	public void addChangeListener(IChangeListener listener)
+	{
+		listeners.addIfAbsent(listener);
+	}
+
+	public void removeChangeListener(IChangeListener listener)
+	{
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Visits the content of a watched directory.
+	 */
+	public interface IVisitor
+	{
+
+		/**
+		 * @return false to stop visiting.
+		 */
+		public boolean visit(Path file);
+
+	}
+
+	/**
+	 * Listener for the changes of the content of a watched directory. Called by the thread that
+	 * watches the directory, should return quickly.
+	 */
+	public interface IChangeListener
+	{
+
+		public void added(Path file);
+
+		public void removed(Path file);
+
+	}
+
 	private static class DirectoryKey
 	{
 		final Path _directoryKey;
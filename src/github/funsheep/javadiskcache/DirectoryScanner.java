@@ -0,0 +1,190 @@
+/*
+	This file is part of the java diskcache library.
+	Copyright (C) 2005-2013 funsheep, cgrote
+
+	This library is subject to the terms of the Mozilla Public License, v. 2.0.
+	You should have received a copy of the MPL along with this library; see the
+	file LICENSE. If not, you can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package github.funsheep.javadiskcache;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Scans directory trees in parallel. Each directory is listed by its own fork-join task, the tasks of the sub-directories
+ * are forked and joined. The number of directories listed at the same time is bounded by the parallelism of the pool
+ * that runs the scan. Each cache has its own pool, the other scans share one pool. Like {@link Files#walkFileTree(Path, java.util.Set, int, java.nio.file.FileVisitor)}
+ * symbolic links are not followed.
+ * <p>
+ * The visitor is called concurrently by several threads.
+ *
+ * @author funsheep
+ */
+class DirectoryScanner
+{
+
+	/**
+	 * Visitor of a scanned tree. Has to be thread-safe.
+	 */
+	interface IVisitor
+	{
+
+		/**
+		 * Called before the content of a directory is scanned.
+		 */
+		public void directory(Path dir);
+
+		/**
+		 * Called for each file, and for each directory below the maximum depth.
+		 */
+		public void file(Path file, BasicFileAttributes attr);
+
+		/**
+		 * Called for each file whose attributes could not be read.
+		 */
+		public void failed(Path file, IOException e);
+
+	}
+
+	private static final Logger LOGGER = Logger.getLogger();
+
+	/** Default number of directories listed at the same time. */
+	static final int DEFAULT_PARALLELISM = Math.max(2, Math.min(16, 2 * Runtime.getRuntime().availableProcessors()));
+
+	private static final ForkJoinPool SHARED = new ForkJoinPool(DEFAULT_PARALLELISM);
+
+
+	private DirectoryScanner()
+	{
+		// no instance
+	}
+
+	/**
+	 * @return The pool of the scans that are not run by a cache.
+	 */
+	static ForkJoinPool shared()
+	{
+		return SHARED;
+	}
+
+	/**
+	 * Scans the given directory with the shared pool.
+	 * @param maxDepth The maximum depth, <i>1</i> to scan only the content of the directory itself.
+	 * @return <code>false</code> if the directory could not be scanned.
+	 */
+	static boolean scan(Path directory, int maxDepth, IVisitor visitor)
+	{
+		return scan(SHARED, directory, maxDepth, visitor);
+	}
+
+	/**
+	 * Scans the given directory with the given pool.
+	 * @param maxDepth The maximum depth, <i>1</i> to scan only the content of the directory itself.
+	 * @return <code>false</code> if the directory could not be scanned.
+	 */
+	static boolean scan(ForkJoinPool pool, Path directory, int maxDepth, IVisitor visitor)
+	{
+		final BasicFileAttributes attr;
+		try
+		{
+			attr = Files.readAttributes(directory, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		}
+		catch (IOException e)
+		{
+			LOGGER.warn("IO error while scanning " + directory, e);
+			return false;
+		}
+		if (!attr.isDirectory())
+		{
+			visitor.file(directory, attr);
+			return true;
+		}
+
+		final ScanTask task = new ScanTask(directory, maxDepth, visitor);
+		if (ForkJoinTask.inForkJoinPool())
+			task.invoke(); // part of a running scan
+		else
+			pool.invoke(task);
+		return true;
+	}
+
+
+	/**
+	 * Lists a single directory and forks the scans of its sub-directories.
+	 */
+	private static class ScanTask extends RecursiveAction
+	{
+
+		private static final long serialVersionUID = 1L;
+
+		private final Path directory;
+		private final int depth;
+		private final IVisitor visitor;
+
+		ScanTask(Path directory, int depth, IVisitor visitor)
+		{
+			this.directory = directory;
+			this.depth = depth;
+			this.visitor = visitor;
+		}
+
+		@Override
+		protected void compute()
+		{
+			visitor.directory(directory);
+			if (depth <= 0)
+				return;
+
+			final ArrayList<ScanTask> subtasks = new ArrayList<ScanTask>();
+			DirectoryStream<Path> stream = null;
+			try
+			{
+				stream = Files.newDirectoryStream(directory);
+				for (Path child : stream)
+				{
+					final BasicFileAttributes attr;
+					try
+					{
+						attr = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+					}
+					catch (IOException e)
+					{
+						visitor.failed(child, e);
+						continue;
+					}
+
+					if (attr.isDirectory() && depth > 1)
+						subtasks.add(new ScanTask(child, depth - 1, visitor));
+					else
+						visitor.file(child, attr);
+				}
+			}
+			catch (IOException e)
+			{
+				visitor.failed(directory, e);
+			}
+			catch (DirectoryIteratorException e)
+			{
+				visitor.failed(directory, e.getCause());
+			}
+			finally
+			{
+				Tools.close(stream);
+			}
+
+			invokeAll(subtasks);
+		}
+
+	}
+
+}
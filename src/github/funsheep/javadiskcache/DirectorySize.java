@@ -11,28 +11,20 @@ package github.funsheep.javadiskcache;
 import java.io.Closeable;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
-import java.nio.file.FileSystems;
-import java.nio.file.FileVisitOption;
-import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardWatchEventKinds;
-import java.nio.file.WatchEvent;
 import java.nio.file.WatchEvent.Kind;
-import java.nio.file.WatchKey;
-import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Map.Entry;
+import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -40,275 +32,213 @@ import java.util.concurrent.locks.ReentrantLock;
  * This class provides various methods to determine the size of a directory. It can constantly watch
  * a directory for changes or just scan on demand to get its size. This class is complete
  * Thread-safe and makes sure a directory is only registered once to a watch service.
+ * The watchers and scans of this class share their threads with all others of the process.
  *
  * @author cgrote
  */
 public final class DirectorySize implements Closeable
 {
 	private static final Logger LOGGER = Logger.getLogger();
-	private static final ExecutorService threadPool = Executors.newCachedThreadPool();
+	private static final ExecutorService threadPool = Executors.newCachedThreadPool(Tools.daemonThreads("diskcache-size"));
 	private static final WeakHashMap<Object, WeakReference<DirectorySize>> sizeWatcher = new WeakHashMap<Object, WeakReference<DirectorySize>>();
 
 	private final ReentrantLock sizeLock = new ReentrantLock();
-	private final ReentrantLock absoluteLock = new ReentrantLock();
-	private final HashMap<Path, Long> fileSize = new HashMap<Path, Long>();
-	private final HashMap<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+	private final PathTable fileSize = new PathTable();
+	private final WatchDispatcher dispatcher = WatchDispatcher.shared();
 	private final boolean recursive;
-	private final Future< ? > future;
+	private final boolean useMultipleThreads;
 	private final Path _directory;
 
 	private int closeCount = 0;
-	private boolean threadReady = false;
-	private WatchService watcher;
 	private AtomicLong currentSize = new AtomicLong(0);
 
-	private DirectorySize(final Path directory, final boolean recursive, final boolean useMultipleThreads)
+	private final WatchDispatcher.ISubscriber subscriber = new WatchDispatcher.ISubscriber()
 	{
-		this.recursive = recursive;
-		this._directory = directory.normalize();
-
-		try
-		{
-			watcher = FileSystems.getDefault().newWatchService();
-		}
-		catch (IOException e)
+		@Override
+		public void changed(Path directory, Kind< ? > kind, final Path child)
 		{
-			LOGGER.warn("IO Error while accessing " + directory, e);
-			future = null;
-			return;
-		}
-		updateDirectorySize(directory);
+			if (kind == StandardWatchEventKinds.ENTRY_CREATE)
 
-		future = threadPool.submit(new Runnable()
-		{
-			@Override
-			public void run()
 			{
-				absoluteLock.lock();
-				DirectorySize.this.setReady();
+				if (recursive && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS))
+				{
+					if (useMultipleThreads)
+						threadPool.execute(new Runnable()
+						{
 
-				while (true)
+							@Override
+							public void run()
+							{
+								updateDirectorySize(child, true);
+							}
+						});
+					else
+						updateDirectorySize(child, true);
+				}
+				else if (!Files.isSymbolicLink(child))
 				{
-					// wait for key to be signaled
-					WatchKey key;
+
 					try
 					{
-						key = watcher.poll();
-						if (key == null)
-						{
-							absoluteLock.unlock();
-							key = watcher.take();
-							absoluteLock.lock();
-						}
+						updateSize(child, Files.size(child));
 					}
-					catch (final InterruptedException e)
+					catch (IOException e)
 					{
-
-						return;
+						if (Files.notExists(child, LinkOption.NOFOLLOW_LINKS))
+							removeSize(child);
 					}
 
-					for (final WatchEvent< ? > event : key.pollEvents())
-					{
-						final Kind< ? > kind = event.kind();
-						if (kind == StandardWatchEventKinds.OVERFLOW)
-						{
-
-							updateDirectorySize(directory);
-
-						}
-						else
-						{
-							Path dir;
-							synchronized (keys)
-							{
-								dir = keys.get(key);
-							}
-							if (dir == null)
-							{
-								LOGGER.warn("Unknown Watchkey " + key);
-								continue;
-							}
-
-							@SuppressWarnings("unchecked")
-							final WatchEvent<Path> ev = (WatchEvent<Path>)event;
-							final Path child = dir.resolve(ev.context());
-
-							if (kind == StandardWatchEventKinds.ENTRY_CREATE)
-
-							{
-								if (recursive && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS))
-								{
-									if (useMultipleThreads)
-										threadPool.execute(new Runnable()
-										{
-
-											@Override
-											public void run()
-											{
-												updateDirectorySize(child);
-											}
-										});
-									else
-										updateDirectorySize(child);
-								}
-								else if (!Files.isSymbolicLink(child))
-								{
-
-									try
-									{
-										updateSize(child, Files.size(child));
-									}
-									catch (IOException e)
-									{
-										if (Files.notExists(child, LinkOption.NOFOLLOW_LINKS))
-											removeSize(child);
-									}
-
-								}
-							}
-							else if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS))
-							{
-								// nothing
-							}
-							else if (kind == StandardWatchEventKinds.ENTRY_DELETE)
-							{
-								if (!Files.isSymbolicLink(child))
-								{
-									removeSize(child);
-								}
-							}
-
-							else if (kind == StandardWatchEventKinds.ENTRY_MODIFY)
-							{
-
-								try
-								{
-									if (!Files.isSymbolicLink(child))
-									{
-										updateSize(child, Files.size(child));
-									}
-								}
-								catch (IOException e)
-								{
-									if (Files.notExists(child, LinkOption.NOFOLLOW_LINKS))
-										removeSize(child);
-								}
-							}
-						}
-
-						final boolean valid = key.reset();
-						if (!valid)
-						{
-							synchronized (keys)
-							{
-								keys.remove(key);
-							}
+				}
+			}
+			else if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS))
+			{
+				// nothing
+			}
+			else if (kind == StandardWatchEventKinds.ENTRY_DELETE)
+			{
+				if (!Files.isSymbolicLink(child))
+				{
+					removeSize(child);
+				}
+			}
 
-							break;
-						}
+			else if (kind == StandardWatchEventKinds.ENTRY_MODIFY)
+			{
 
+				try
+				{
+					if (!Files.isSymbolicLink(child))
+					{
+						updateSize(child, Files.size(child));
 					}
 				}
+				catch (IOException e)
+				{
+					if (Files.notExists(child, LinkOption.NOFOLLOW_LINKS))
+						removeSize(child);
+				}
 			}
-		});
+		}
 
-		while (!future.isDone() && !threadReady)
-			Thread.yield();
-	}
+		@Override
+		public void rescan(Path directory)
+		{
+			updateDirectorySize(directory, false);
+		}
+	};
 
-	private void setReady()
+	private DirectorySize(final Path directory, final boolean recursive, final boolean useMultipleThreads)
 	{
-		threadReady = true;
+		this.recursive = recursive;
+		this.useMultipleThreads = useMultipleThreads;
+		this._directory = directory.normalize();
+		updateDirectorySize(_directory, true);
 	}
 
 	private void updateSize(Path file, long size)
 	{
 		sizeLock.lock();
-		Long oldSize = fileSize.put(file.normalize(), Long.valueOf(size));
-		if (oldSize != null)
-			DirectorySize.this.currentSize.addAndGet(size - oldSize.longValue());
+		long oldSize = fileSize.put(this.name(file), size);
+		if (oldSize != PathTable.NOT_FOUND)
+			DirectorySize.this.currentSize.addAndGet(size - oldSize);
+		else
+			DirectorySize.this.currentSize.addAndGet(size);
 		sizeLock.unlock();
 	}
 
 	private void removeSize(Path file)
 	{
 		sizeLock.lock();
-		Long oldSize = fileSize.remove(file.normalize());
-		if (oldSize != null)
-			DirectorySize.this.currentSize.addAndGet(-oldSize.longValue());
+		long oldSize = fileSize.remove(this.name(file));
+		if (oldSize != PathTable.NOT_FOUND)
+			DirectorySize.this.currentSize.addAndGet(-oldSize);
 		sizeLock.unlock();
 	}
 
-	private void updateDirectorySize(final Path directory)
+	/**
+	 * @return The key of the given file in the size table, its path relative to the watched directory.
+	 */
+	private String name(Path file)
 	{
-		final HashSet<Path> files = new HashSet<Path>();
+		return _directory.relativize(file.normalize()).toString();
+	}
 
-		try
+	/**
+	 * Scans the given directory and watches it. Files of the directory that no longer exist are removed.
+	 * @param deep Whether all sub-directories are scanned, otherwise only the ones that are not watched yet.
+	 */
+	private void updateDirectorySize(final Path directory, final boolean deep)
+	{
+		final Set<String> files = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		final boolean scanned = DirectoryScanner.scan(directory, recursive && deep ? Integer.MAX_VALUE : 1, new DirectoryScanner.IVisitor()
 		{
-			Files.walkFileTree(directory, Collections.<FileVisitOption> emptySet(), recursive ? Integer.MAX_VALUE : 1,
-				new SimpleFileVisitor<Path>()
+			@Override
+			public void directory(Path dir)
+			{
+				try
 				{
-					@Override
-					public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attr)
-					{
-						try
-						{
-							WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
-								StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
-							synchronized (keys)
-							{
-								keys.put(key, dir);
-							}
-						}
-						catch (IOException e)
-						{
-							LOGGER.warn("IO error while accessing " + dir, e);
-						}
-
-						return FileVisitResult.CONTINUE;
-					}
+					dispatcher.register(dir, subscriber, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+				}
+				catch (IOException e)
+				{
+					LOGGER.warn("IO error while accessing " + dir, e);
+				}
+			}
 
-					@Override
-					public FileVisitResult visitFileFailed(Path file, IOException exc)
-					{
-						if (Files.notExists(file, LinkOption.NOFOLLOW_LINKS))
-							removeSize(file);
-						return FileVisitResult.CONTINUE;
-					}
+			@Override
+			public void failed(Path file, IOException exc)
+			{
+				if (Files.notExists(file, LinkOption.NOFOLLOW_LINKS))
+					removeSize(file);
+			}
 
-					@Override
-					public FileVisitResult visitFile(Path file, BasicFileAttributes attr)
-					{
-						if (attr.isRegularFile())
-						{
-							updateSize(file, attr.size());
-						}
-						files.add(file);
-						return FileVisitResult.CONTINUE;
-					}
-				});
-		}
-		catch (IOException e)
-		{
-			LOGGER.warn("IO error while scanning " + directory, e);
+			@Override
+			public void file(Path file, BasicFileAttributes attr)
+			{
+				if (attr.isRegularFile())
+				{
+					updateSize(file, attr.size());
+				}
+				else if (recursive && attr.isDirectory() && !dispatcher.isRegistered(file, subscriber))
+				{
+					updateDirectorySize(file, true); // created while events were lost
+				}
+				files.add(name(file));
+			}
+		});
+		if (!scanned)
 			return;
-		}
 
+		final String prefix = name(directory);
 		sizeLock.lock();
-		Iterator<Entry<Path, Long>> it = fileSize.entrySet().iterator();
-		while (it.hasNext())
+		try
 		{
-			Entry<Path, Long> e = it.next();
-			if (!files.contains(e.getKey()))
+			if (deep && prefix.isEmpty())
 			{
-				DirectorySize.this.currentSize.addAndGet(-e.getValue().longValue());
-				it.remove();
+				DirectorySize.this.currentSize.addAndGet(-fileSize.retainAll(files));
+				return;
 			}
-
+			final ArrayList<String> removed = new ArrayList<String>();
+			fileSize.visit(new PathTable.IVisitor()
+			{
+				@Override
+				public boolean visit(String name, long value)
+				{
+					if (WatchDispatcher.contains(prefix, name, deep) && !files.contains(name))
+						removed.add(name);
+					return true;
+				}
+			});
+			for (String name : removed)
+				DirectorySize.this.currentSize.addAndGet(-fileSize.remove(name));
+		}
+		finally
+		{
+			sizeLock.unlock();
 		}
-		sizeLock.unlock();
 	}
-
 	/**
 	 * @return a directory watcher that observe the directory for changes. Use the close() method to
 	 *         stop watching the directory.
@@ -359,10 +289,15 @@ public final class DirectorySize implements Closeable
 	 */
 	public long getActualSize()
 	{
-		absoluteLock.lock();
-		long size = currentSize.longValue();
-		absoluteLock.unlock();
-		return size;
+		dispatcher.lock();
+		try
+		{
+			return currentSize.longValue();
+		}
+		finally
+		{
+			dispatcher.unlock();
+		}
 	}
 
 	/**
@@ -383,31 +318,42 @@ public final class DirectorySize implements Closeable
 	 */
 	public static long directorySize(final Path directory, boolean recursive)
 	{
-		final long[] size = new long[1];
-		try
+		return DirectorySize.directorySize(directory, recursive, DirectoryScanner.shared());
+	}
+
+	/**
+	 * Scans the directory with the given pool and return its size in bytes.
+	 *
+	 * @return the size of the directory in bytes.
+	 */
+	static long directorySize(final Path directory, boolean recursive, ForkJoinPool pool)
+	{
+		final AtomicLong size = new AtomicLong();
+		final boolean scanned = DirectoryScanner.scan(pool, directory, recursive ? Integer.MAX_VALUE : 1, new DirectoryScanner.IVisitor()
 		{
-			Files.walkFileTree(directory, Collections.<FileVisitOption> emptySet(), recursive ? Integer.MAX_VALUE : 1,
-				new SimpleFileVisitor<Path>()
+			@Override
+			public void directory(Path dir)
+			{
+				// nothing
+			}
+
+			@Override
+			public void file(Path file, BasicFileAttributes attr)
+			{
+				if (attr.isRegularFile())
 				{
+					size.addAndGet(attr.size());
+				}
+			}
 
-					@Override
-					public FileVisitResult visitFile(Path file, BasicFileAttributes attr)
-					{
-						if (attr.isRegularFile())
-						{
-							size[0] += attr.size();
-						}
-						return FileVisitResult.CONTINUE;
-					}
-				});
-		}
-		catch (IOException e)
-		{
-			LOGGER.warn("IO error while scanning " + directory, e);
-			return -1;
-		}
+			@Override
+			public void failed(Path file, IOException e)
+			{
+				// nothing
+			}
+		});
 
-		return size[0];
+		return scanned ? size.get() : -1;
 	}
 
 	/**
@@ -448,10 +394,11 @@ public final class DirectorySize implements Closeable
 		{
 			if (--closeCount > 0)
 				return;
-			future.cancel(true);
-			keys.clear();
+			dispatcher.cancel(subscriber);
+			sizeLock.lock();
 			fileSize.clear();
-			watcher.close();
+			currentSize.set(0);
+			sizeLock.unlock();
 		}
 	}
 
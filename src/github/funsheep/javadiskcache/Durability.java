@@ -0,0 +1,37 @@
+/*
+	This file is part of the java diskcache library.
+	Copyright (C) 2005-2013 funsheep, cgrote
+
+	This library is subject to the terms of the Mozilla Public License, v. 2.0.
+	You should have received a copy of the MPL along with this library; see the
+	file LICENSE. If not, you can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package github.funsheep.javadiskcache;
+
+/**
+ * Defines when the content of a loaded entry is forced to the storage device.
+ * @see FileCache#setDurability(Durability, long)
+ * @author funsheep
+ */
+public enum Durability
+{
+
+	/**
+	 * Content is never forced, the operating system writes it when it sees fit. After a power loss, entries may contain
+	 * garbage. Fastest.
+	 */
+	NONE,
+
+	/**
+	 * Content is forced when an entry has been loaded, before the entry is marked complete. The thread that completes the
+	 * entry waits for it. Entries completed at the same time are forced together.
+	 */
+	ON_COMPLETE,
+
+	/**
+	 * Content is forced periodically in the background. Completed entries are not waited for, an entry may be lost if the
+	 * power fails within the commit interval.
+	 */
+	GROUP_COMMIT
+
+}
@@ -0,0 +1,147 @@
+/*
+	This file is part of the java diskcache library.
+	Copyright (C) 2005-2013 funsheep, cgrote
+
+	This library is subject to the terms of the Mozilla Public License, v. 2.0.
+	You should have received a copy of the MPL along with this library; see the
+	file LICENSE. If not, you can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package github.funsheep.javadiskcache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Delivers the {@link CacheEvent}s of a cache to its {@link ICacheListener}s.
+ * Events are queued by the thread that notices them and delivered by a single background thread. The thread waits
+ * {@link #BATCH_DELAY} after the first queued event, all events queued in the meantime are delivered in one batch.
+ *
+ * @author funsheep
+ */
+class EventBatcher
+{
+
+	private static final Logger LOGGER = Logger.getLogger();
+
+	/** Time to collect events for a batch in milliseconds. */
+	static final long BATCH_DELAY = 50;
+
+	private final CopyOnWriteArrayList<ICacheListener> listeners = new CopyOnWriteArrayList<ICacheListener>();
+	private ArrayList<CacheEvent> pending = new ArrayList<CacheEvent>();
+	private boolean closed = false;
+	private Thread thread = null;
+
+
+	void addListener(ICacheListener listener)
+	{
+		listeners.addIfAbsent(listener);
+	}
+
+	void removeListener(ICacheListener listener)
+	{
+		listeners.remove(listener);
+	}
+
+	boolean hasListeners()
+	{
+		return !listeners.isEmpty();
+	}
+
+	/**
+	 * Queues the given event, if there are listeners.
+	 */
+	synchronized void post(CacheEvent event)
+	{
+		if (listeners.isEmpty() || closed)
+			return;
+
+		pending.add(event);
+		if (thread == null)
+			this.start();
+		this.notifyAll();
+	}
+
+	private void start()
+	{
+		thread = new Thread("diskcache-events")
+		{
+
+			@Override
+			public void run()
+			{
+				try
+				{
+					while (EventBatcher.this.deliverBatch())
+						continue;
+				}
+				catch (InterruptedException e)
+				{
+					// stop
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Delivers the pending events and stops the thread. Events posted afterwards are dropped.
+	 */
+	void close()
+	{
+		final Thread t;
+		synchronized (this)
+		{
+			closed = true;
+			this.notifyAll();
+			t = thread;
+		}
+		if (t == null || t == Thread.currentThread())
+			return; // closed by a listener
+		try
+		{
+			t.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return <code>false</code> if the batcher has been closed.
+	 */
+	private boolean deliverBatch() throws InterruptedException
+	{
+		final List<CacheEvent> batch;
+		synchronized (this)
+		{
+			while (pending.isEmpty() && !closed)
+				this.wait();
+			if (pending.isEmpty())
+				return false;
+			final long deadline = System.currentTimeMillis() + BATCH_DELAY;
+			for (long delay = BATCH_DELAY; delay > 0 && !closed; delay = deadline - System.currentTimeMillis())
+				this.wait(delay);
+
+			batch = Collections.unmodifiableList(pending);
+			pending = new ArrayList<CacheEvent>();
+		}
+
+		for (ICacheListener listener : listeners)
+		{
+			try
+			{
+				listener.changed(batch);
+			}
+			catch (RuntimeException e)
+			{
+				LOGGER.warn("Cache listener failed", e);
+			}
+		}
+		return true;
+	}
+
+}
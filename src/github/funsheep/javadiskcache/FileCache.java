@@ -9,14 +9,18 @@
 package github.funsheep.javadiskcache;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.FileAlreadyExistsException;
@@ -27,29 +31,54 @@ import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
-import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
 
 /**
  * Transparent fileCache for {@link InputStream} implementation with simple wrapping mechanism.
  * Features: Detects multiple streams for a given id and automatically closes additional streams.
  * Checks free-space on drive prior to storing a file. Multi-Thread Support and Multi-JVM support.
  * Global cache-size limit with LRU-Schema.
+ * <p>
+ * The shared cache of the process lives in the temporary directory of the user, see
+ * {@link #instance()} and {@link #setup(String, long)}. Further caches, e.g. on other volumes
+ * with other limits, are created with {@link #builder(Path)} and closed by their user.
  *
  * @author cgrote
  * @author funsheep
  */
-public class FileCache
+public class FileCache implements Closeable
 {
 
 	static final long NOT_AVAILABLE = -1;
+	private static final String STAGING = "staging";
+	private static final String MODIFIED = ".modified";
+	/** Interval in which the occupied bytes are reconciled with the cache directory in milliseconds. */
+	private static final long RECONCILE_INTERVAL = 60 * 1000;
 	private static final Logger LOGGER = Logger.getLogger();
+	// directories with a staging directory, their entries are published complete
+	private static final Set<Path> stagingDirs = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
 
 	private static FileCache INSTANCE = null;
 
@@ -58,51 +87,542 @@ public class FileCache
 	private final Path cacheDir;
 	private final Path boundlessDir;
 	private final Path modifiedDir;
-	private final DirectoryContent dirWatcher;
-
-	private long currentSize = 0; // in Bytes
-
-
-	private FileCache() throws IOException
-	{
-		this(null, 1 * 1024 * 1024 * 1024);
-	}
-
-	private FileCache(String name, long limit) throws IOException
+	private final Path blobDir;
+	private final Path stagingDir;
+	private final boolean links;
+	private final ExecutorService executor;
+	private final boolean ownsExecutor;
+	private final ForkJoinPool scanPool;
+	private final WatchDispatcher dispatcher = new WatchDispatcher();
+	private final Future<?> indexLoad;
+	private final CacheStatistics statistics = new CacheStatistics();
+	private final SyncBatcher syncer = new SyncBatcher(statistics);
+	private final EventBatcher events = new EventBatcher();
+	private final HashMap<String, Long> versions = new HashMap<String, Long>(); // latest version per id, while listened
+	private final Set<Path> invalidated = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+	private final Set<Path> unindexed = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>()); // counted before the index was loaded
+
+	private final AtomicBoolean reconciling = new AtomicBoolean();
+
+	private volatile DirectoryContent dirWatcher = null;
+	private volatile boolean closed = false;
+	private volatile long reconciled = System.currentTimeMillis();
+	private boolean listening = false;
+	private long chunkThreshold = NOT_AVAILABLE;
+	private long sparseThreshold = NOT_AVAILABLE;
+	private int chunkSize = 4 * 1024 * 1024;
+	private int chunkParallelism = 4;
+	private boolean compression = false;
+	private boolean blockVerification = true;
+	private int digestSampleRate = 100;
+	private long verifiedReads = 0;
+	private BufferPool heapBuffers = BufferPool.HEAP;
+	private BufferPool directBuffers = BufferPool.DIRECT;
+	private final WriteBehind.Windows followerWindows = new WriteBehind.Windows(WriteBehind.DEFAULT_WINDOW, WriteBehind.DEFAULT_WINDOW_MEMORY);
+	private long directThreshold = NOT_AVAILABLE;
+	private volatile IMemoryTier memory = null;
+	private volatile HotKeys hotKeys = null;
+
+
+	private FileCache(Builder builder)
 	{
-		if (name != null && name.length() > 0)
-			name += '_';
-		else
-			name = "";
-		this.sizelimit = limit;
-		this.cacheDir = Paths.get(Tools.ensureTempDir(), name + "cache");
+		this.sizelimit = builder.sizeLimit;
+		this.cacheDir = builder.directory;
+		this.ownsExecutor = builder.executor == null;
+		this.executor = ownsExecutor ? Executors.newCachedThreadPool(Tools.daemonThreads("diskcache")) : builder.executor;
+		this.scanPool = new ForkJoinPool(builder.scanParallelism);
 		this.boundlessDir = Paths.get(cacheDir.toString(), "boundless");
 		this.modifiedDir = Paths.get(cacheDir.toString(), "lastModified");
-		this.dirWatcher = DirectoryContent.getWatcher(cacheDir);
+		this.blobDir = Paths.get(cacheDir.toString(), "blobs");
+		this.stagingDir = Paths.get(cacheDir.toString(), STAGING);
+		this.links = cacheDir.getFileSystem().supportedFileAttributeViews().contains("unix");
 		try
 		{
 			Files.createDirectories(cacheDir);
 			Files.createDirectories(boundlessDir);
 			Files.createDirectories(modifiedDir);
 			Files.createDirectories(modifiedDir.resolve("boundless"));
+			Files.createDirectories(stagingDir);
+			Files.createDirectories(boundlessDir.resolve(STAGING));
 		}
 		catch (IOException e)
 		{
 			LOGGER.warn("Could not create cache directory " + getCacheDir());
 		}
+		// the directory has to exist to be watched
+		this.indexLoad = executor.submit(new Runnable()
+		{
+
+			@Override
+			public void run()
+			{
+				FileCache.this.loadIndex();
+			}
+		});
+	}
+
+	/**
+	 * Scans the cache directory and starts watching it. Entries are found by their path without
+	 * the index, it is needed only to find the latest version of a source, to evict entries and
+	 * to notify listeners. The occupied bytes are counted from the index.
+	 */
+	private void loadIndex()
+	{
+		final long start = System.currentTimeMillis();
+		final DirectoryContent watcher = DirectoryContent.getWatcher(cacheDir, dispatcher, scanPool);
+		// the counters hold the entries loaded since the start, add the entries found
+		reconciled = System.currentTimeMillis();
+		statistics.cachedBytes.addAndGet(this.scanSize(watcher));
+		statistics.boundlessBytes.addAndGet(DirectorySize.directorySize(boundlessDir, true, scanPool));
+		dirWatcher = watcher;
+		unindexed.clear();
+		LOGGER.info("Loaded index of " + cacheDir + " in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * @return The watcher of the cache directory. Waits until the index has been loaded.
+	 */
+	private DirectoryContent index()
+	{
+		boolean interrupted = false;
+		while (dirWatcher == null)
+		{
+			try
+			{
+				indexLoad.get();
+			}
+			catch (InterruptedException e)
+			{
+				interrupted = true;
+			}
+			catch (ExecutionException e)
+			{
+				LOGGER.warn("Could not load the index of " + cacheDir, e.getCause());
+				dirWatcher = DirectoryContent.getWatcher(cacheDir, dispatcher, scanPool);
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		return dirWatcher;
+	}
+
+	/**
+	 * @return Whether the index of the cache directory has been loaded. Until then,
+	 *         {@link #currentSize()} counts only the entries loaded since the start.
+	 */
+	public boolean isIndexLoaded()
+	{
+		return dirWatcher != null;
 	}
 
-	public synchronized ReadableByteChannel getCachedByteChannel(String uid, InputStream input, long size, long lastModified) throws IOException
+	public ReadableByteChannel getCachedByteChannel(String uid, InputStream input, long size, long lastModified) throws IOException
 	{
 		return Channels.newChannel(getCachedInputStream(uid, input, size, lastModified));
 	}
 
-	public synchronized InputStream getCachedInputStream(ICacheable cachable) throws IOException
+	public InputStream getCachedInputStream(ICacheable cachable) throws IOException
+	{
+		final InputStream kept = this.fromMemory(cachable.uID(), null, cachable.size(), cachable.lastModified());
+		if (kept != null)
+			return kept;
+
+		synchronized (this)
+		{
+			InputStream cached = this.getCachedInputStream(cachable.uID(), null, cachable.size(), cachable.lastModified(), cachable);
+			if (cached == null && isChunked(cachable))
+				cached = this.getChunkedInputStream((IRangeCacheable)cachable);
+			if (cached == null)
+				cached = this.getCachedInputStream(cachable.uID(), requestContent(cachable), cachable.size(), cachable.lastModified(), null);
+			return cached;
+		}
+	}
+
+	/**
+	 * Content of range capable sources with a known size is requested lazily. Resuming a partially
+	 * cached entry then only requests the missing part from the source.
+	 */
+	static InputStream requestContent(ICacheable cachable) throws IOException
+	{
+		if (cachable instanceof IRangeCacheable && cachable.size() != NOT_AVAILABLE)
+			return new RangeInputStream((IRangeCacheable)cachable);
+		return cachable.requestContent();
+	}
+
+	/**
+	 * Enables the chunked layout for entries of at least the given size that are requested through an {@link IRangeCacheable}.
+	 * Such entries are stored in chunks of a fixed size. The chunks are loaded in parallel, can be read as soon as they are
+	 * present and are evicted separately, starting at the tail of an entry.
+	 *
+	 * @param threshold The minimum size of a chunked entry in bytes or <i>-1</i> to disable the chunked layout.
+	 * @param chunkSize The size of a chunk in bytes.
+	 * @param parallelism The maximum number of chunks loaded in parallel for a single entry.
+	 */
+	public synchronized void setChunkedLayout(long threshold, int chunkSize, int parallelism)
+	{
+		if (chunkSize <= 0 || parallelism <= 0)
+			throw new IllegalArgumentException("Chunk size and parallelism have to be positive.");
+		this.chunkThreshold = threshold;
+		this.chunkSize = chunkSize;
+		this.chunkParallelism = parallelism;
+	}
+
+	/**
+	 * Enables sparse entries for entries of at least the given size that are requested through an {@link IRangeCacheable}.
+	 * Sparse entries use the chunked layout, but only the chunks that are actually read are loaded from the source and stored.
+	 * Skipping within such an entry, e.g. to read the end of a large archive, does not load the skipped content.
+	 * The chunk size and parallelism are the ones set by {@link #setChunkedLayout(long, int, int)}.
+	 *
+	 * @param threshold The minimum size of a sparse entry in bytes or <i>-1</i> to disable sparse entries.
+	 */
+	public synchronized void setSparseLayout(long threshold)
+	{
+		this.sparseThreshold = threshold;
+	}
+
+	/**
+	 * Enables the compression of new entries. Compressed entries are stored in independently
+	 * compressed frames, random access therefore stays cheap. Frames that do not compress well are
+	 * stored uncompressed. The compressed size is counted against the cache-size limit. Entries in
+	 * the chunked layout are not compressed.
+	 *
+	 * @param compression <i>true</i> to compress new entries.
+	 */
+	public synchronized void setCompression(boolean compression)
+	{
+		this.compression = compression;
+	}
+
+	/**
+	 * Sets how the content of cached entries is verified when it is read. Each block of an entry
+	 * is checked against the CRC computed while loading, just before it is handed out. The digest
+	 * of the whole content is checked only for a sample of the reads that read an entry
+	 * completely. On a mismatch the entry is invalidated and the content is loaded from the source
+	 * if it is known.
+	 *
+	 * @param blocks <i>true</i> to verify the blocks of an entry.
+	 * @param digestSampleRate Every how many reads of an entry the digest is verified, <i>0</i>
+	 *            to never verify the digest.
+	 */
+	public synchronized void setVerification(boolean blocks, int digestSampleRate)
+	{
+		if (digestSampleRate < 0)
+			throw new IllegalArgumentException("Sample rate must not be negative.");
+		this.blockVerification = blocks;
+		this.digestSampleRate = digestSampleRate;
+	}
+
+	/**
+	 * Sets the size of the buffers used by the streams of this cache. Buffers are pooled and
+	 * reused by later streams. Larger buffers reduce the number of system calls for fast disks
+	 * and networks, a loaded source additionally holds up to 512 KiB of buffered content that is
+	 * not yet written.
+	 *
+	 * @param bufferSize The size of a buffer in bytes.
+	 */
+	public synchronized void setBufferSize(int bufferSize)
+	{
+		if (bufferSize <= 0)
+			throw new IllegalArgumentException("Buffer size has to be positive.");
+		if (bufferSize == BufferPool.DEFAULT_SIZE)
+		{
+			this.heapBuffers = BufferPool.HEAP;
+			this.directBuffers = BufferPool.DIRECT;
+		}
+		else
+		{
+			this.heapBuffers = new BufferPool(bufferSize, false);
+			this.directBuffers = new BufferPool(bufferSize, true);
+		}
+	}
+
+	/**
+	 * Sets the window of recently loaded content that is kept in memory for each entry that is
+	 * currently loaded. Streams that read such an entry behind the loading stream read from this
+	 * window instead of the cache file. The memory of all windows is limited, entries that are
+	 * loaded when the limit is reached do not keep a window.
+	 *
+	 * @param window The size of the window per loaded entry in bytes, <i>0</i> to disable windows.
+	 * @param memory The maximum memory of the windows of all entries loaded by this cache in
+	 *            bytes.
+	 */
+	public void setFollowerWindow(int window, long memory)
+	{
+		if (window < 0 || memory < 0)
+			throw new IllegalArgumentException("Window and memory must not be negative.");
+		followerWindows.set(window, memory);
+	}
+
+	/**
+	 * Writes new entries of at least the given size with direct I/O, bypassing the page cache of
+	 * the operating system. Loading large entries then does not evict the cached pages of
+	 * frequently read small entries. Direct I/O requires Java 10 or later and a file system that
+	 * supports it, otherwise the entries are written as usual. The buffer size should be a
+	 * multiple of the block size of the file system, see {@link #setBufferSize(int)}.
+	 *
+	 * @param threshold The minimum size of an entry written with direct I/O in bytes or <i>-1</i>
+	 *            to disable direct I/O.
+	 */
+	public synchronized void setDirectIO(long threshold)
+	{
+		this.directThreshold = threshold;
+	}
+
+	/**
+	 * Sets when the content of loaded entries is forced to the storage device. Entries of the
+	 * chunked layout are not forced.
+	 *
+	 * @param durability The durability of loaded entries.
+	 * @param commitInterval The interval for {@link Durability#GROUP_COMMIT} in milliseconds.
+	 */
+	public void setDurability(Durability durability, long commitInterval)
+	{
+		if (durability == null)
+			throw new IllegalArgumentException("Durability must not be null.");
+		syncer.configure(durability, commitInterval);
+	}
+
+	/**
+	 * Keeps small entries in memory in front of the cache directory. An entry is kept when it has
+	 * been read completely from the cache directory or has been loaded, reading it again neither
+	 * touches the cache directory nor locks the cache. Only one version of a source is kept, storing a new version replaces it. The
+	 * least recently read entries are evicted first.
+	 *
+	 * @param capacity The maximum memory in bytes, <i>0</i> to disable the memory tier.
+	 * @param maxEntrySize The size of the largest entry kept in memory in bytes.
+	 */
+	public synchronized void setMemoryTier(long capacity, int maxEntrySize)
+	{
+		this.setMemoryTier(capacity, maxEntrySize, false);
+	}
+
+	/**
+	 * Keeps small entries in memory in front of the cache directory, see
+	 * {@link #setMemoryTier(long, int)}. Off the heap, the entries are kept in slabs of direct
+	 * buffers of 1 MiB, which are not scanned by the garbage collector. The capacity is used in
+	 * whole slabs and has to be at least one slab, entries larger than a slab are not kept. The
+	 * maximum direct memory of the jVM has to be large enough. The slabs of a replaced tier or of a
+	 * closed cache are released by the garbage collector only.
+	 *
+	 * @param capacity The maximum memory in bytes, <i>0</i> to disable the memory tier.
+	 * @param maxEntrySize The size of the largest entry kept in memory in bytes.
+	 * @param offHeap <i>true</i> to keep the entries off the heap.
+	 */
+	public synchronized void setMemoryTier(long capacity, int maxEntrySize, boolean offHeap)
+	{
+		if (capacity < 0 || maxEntrySize < 0)
+			throw new IllegalArgumentException("Capacity and entry size must not be negative.");
+		if (offHeap && capacity > 0 && capacity < SlabMemoryTier.SLAB_SIZE)
+			throw new IllegalArgumentException("Capacity off the heap has to be at least " + SlabMemoryTier.SLAB_SIZE + " bytes.");
+		if (capacity == 0)
+			this.memory = null;
+		else if (offHeap)
+			this.memory = new SlabMemoryTier(capacity, maxEntrySize);
+		else
+			this.memory = new HeapMemoryTier(capacity, maxEntrySize);
+	}
+
+	/**
+	 * Sets how the most requested sources are detected. Sources that become hot are promoted:
+	 * small entries are put into the memory tier, the content of larger ones is read into the page
+	 * cache of the operating system in the background. See {@link #hotKeys(int)}. The detection
+	 * is disabled by default.
+	 *
+	 * @param sampleRate Every how many requests a request is sampled, <i>0</i> to disable the
+	 *            detection.
+	 * @param trackedKeys The number of sources tracked.
+	 */
+	public synchronized void setHotKeyDetection(int sampleRate, int trackedKeys)
+	{
+		if (sampleRate < 0 || trackedKeys <= 0)
+			throw new IllegalArgumentException("Sample rate must not be negative, tracked keys have to be positive.");
+		this.hotKeys = sampleRate > 0 ? new HotKeys(sampleRate, trackedKeys) : null;
+	}
+
+	/**
+	 * @param n The number of sources.
+	 * @return The most requested sources of this cache with their estimated number of requests,
+	 *         most requested first. Empty if the detection is disabled.
+	 */
+	public synchronized Map<String, Long> hotKeys(int n)
+	{
+		if (hotKeys == null)
+			return Collections.emptyMap();
+		return hotKeys.top(n);
+	}
+
+	/**
+	 * @return The counters of this cache.
+	 */
+	public CacheStatistics statistics()
+	{
+		return statistics;
+	}
+
+	/**
+	 * Adds a listener that is notified when entries are completed, evicted, invalidated or
+	 * replaced by a new version. Changes made by other processes that share the cache directory
+	 * are reported as well, entries they invalidate are reported as evicted. Entries of an unknown
+	 * size are reported only for the changes made by this cache, the tail chunks evicted from
+	 * chunked entries are not reported, see {@link ICacheListener}.
+	 */
+	public void addCacheListener(ICacheListener listener)
+	{
+		events.addListener(listener);
+		final DirectoryContent watcher = this.index(); // without locking the cache
+		synchronized (this)
+		{
+			if (listening)
+				return;
+			listening = true;
+		}
+		watcher.addChangeListener(new DirectoryContent.IChangeListener()
+		{
+			@Override
+			public void added(Path file)
+			{
+				if (isEntry(file) && Files.notExists(chunkMap(file))) // chunked entries are reported when all chunks are present
+					FileCache.this.completed(file);
+			}
+
+			@Override
+			public void removed(Path file)
+			{
+				if (isEntry(file))
+					FileCache.this.removed(file);
+			}
+		});
+		watcher.visitActualContent(new DirectoryContent.IVisitor()
+		{
+			@Override
+			public boolean visit(Path file)
+			{
+				if (isEntry(file))
+					FileCache.this.newVersion(file);
+				return true;
+			}
+		});
+	}
+
+	public void removeCacheListener(ICacheListener listener)
+	{
+		events.removeListener(listener);
+	}
+
+	private void completed(Path file)
+	{
+		if (!events.hasListeners())
+			return;
+		events.post(new CacheEvent(CacheEvent.Type.COMPLETED, getID(file), getSize(file), getLastModified(file)));
+		if (this.newVersion(file))
+			events.post(new CacheEvent(CacheEvent.Type.NEW_VERSION, getID(file), getSize(file), getLastModified(file)));
+	}
+
+	/**
+	 * Remembers the version of the given entry.
+	 * @return Whether the entry is newer than another entry of the same source.
+	 */
+	private boolean newVersion(Path file)
+	{
+		final String id = getID(file);
+		final long lastModified = getLastModified(file);
+		synchronized (versions)
+		{
+			final Long latest = versions.get(id);
+			if (latest != null && latest.longValue() >= lastModified)
+				return false;
+			versions.put(id, Long.valueOf(lastModified));
+			return latest != null;
+		}
+	}
+
+	private void removed(Path file)
+	{
+		final String id = getID(file);
+		synchronized (versions)
+		{
+			final Long latest = versions.get(id);
+			if (latest != null && latest.longValue() == getLastModified(file))
+				versions.remove(id);
+		}
+		final CacheEvent.Type type = invalidated.remove(file) ? CacheEvent.Type.INVALIDATED : CacheEvent.Type.EVICTED;
+		events.post(new CacheEvent(type, id, getSize(file), getLastModified(file)));
+	}
+
+	/**
+	 * @return Whether the given file in the cache directory is an entry, not a directory of side files.
+	 */
+	private static boolean isEntry(Path file)
+	{
+		return Tools.fromBase64String(file.getFileName().toString()).length >= 16;
+	}
+
+	private boolean isChunked(ICacheable cachable)
+	{
+		if (!(cachable instanceof IRangeCacheable) || cachable.size() == NOT_AVAILABLE)
+			return false;
+		if (Files.exists(codecIndex(getCacheFile(cachable.uID(), cachable.size(), cachable.lastModified()))))
+			return false;
+		if (chunkThreshold != NOT_AVAILABLE && cachable.size() >= chunkThreshold)
+			return true;
+		if (isSparse(cachable.size()))
+			return true;
+		return Files.exists(chunkMap(getCacheFile(cachable.uID(), cachable.size(), cachable.lastModified())));
+	}
+
+	private boolean isSparse(long size)
+	{
+		return sparseThreshold != NOT_AVAILABLE && size >= sparseThreshold;
+	}
+
+	/**
+	 * Returns a stream on a chunked entry. Missing chunks are loaded from the source.
+	 * @return The stream or <i>null</i> if the entry can not be cached in chunks.
+	 */
+	private InputStream getChunkedInputStream(IRangeCacheable source)
 	{
-		InputStream cached = this.getCachedInputStream(cachable.uID(), null, cachable.size(), cachable.lastModified());
-		if (cached == null)
-			cached = this.getCachedInputStream(cachable.uID(), cachable.requestContent(), cachable.size(), cachable.lastModified());
-		return cached;
+		final String id = source.uID();
+		final long size = source.size();
+		final long lastModified = source.lastModified();
+		final Path file = getCacheFile(id, size, lastModified);
+		final String uid = file.toString(); // loaders are shared by the streams of one cache directory only
+
+		ChunkedLoader loader = ChunkedLoader.getLoader(uid);
+		if (loader == null)
+		{
+			if (Files.notExists(file) && !reserveChunked(file, size))
+				return null;
+
+			final Path lockFile = writeLock(file);
+			final FileLock wlock = createLock(lockFile);
+			if (wlock == null)
+				return null; // loaded by another jVM
+
+			FileChannel chan = null;
+			try
+			{
+				chan = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				final ChunkMap map = ChunkMap.open(chunkMap(file), size, chunkSize, chan);
+				loader = ChunkedLoader.getLoader(source, chan, map, uid, wlock, chunkParallelism, isSparse(size), loadListener(file),
+					heapBuffers, executor);
+			}
+			catch (IOException e)
+			{
+				LOGGER.warn("Could not open chunked entry " + file, e);
+				Tools.close(chan);
+				removeLock(lockFile, wlock);
+				return null;
+			}
+		}
+
+		final ChunkedInputStream stream = new ChunkedInputStream(loader);
+		final InputStream in = read(file, stream);
+		if (in == null)
+		{
+			Tools.close(stream);
+			return null;
+		}
+		LOGGER.info("Read chunks from cache " + id);
+		return in;
 	}
 
 	/**
@@ -113,7 +633,44 @@ public class FileCache
 	 * @param id : unique name of the resource, should not change with different versions of the
 	 *            same file.
 	 */
-	public synchronized InputStream getCachedInputStream(String id, InputStream input, long size, long lastModified) throws IOException
+	public InputStream getCachedInputStream(String id, InputStream input, long size, long lastModified) throws IOException
+	{
+		final InputStream kept = this.fromMemory(id, input, size, lastModified);
+		if (kept != null)
+			return kept;
+
+		synchronized (this)
+		{
+			return this.getCachedInputStream(id, input, size, lastModified, null);
+		}
+	}
+
+	/**
+	 * Looks the entry up in the memory tier. Does not lock the cache, hits of the memory tier are
+	 * not serialized.
+	 * @return The content kept in memory or <code>null</code>.
+	 */
+	private InputStream fromMemory(String id, InputStream input, long size, long lastModified) throws IOException
+	{
+		if (closed)
+			throw new IOException("Cache " + cacheDir + " is closed.");
+		final HotKeys hotKeys = this.hotKeys;
+		if (hotKeys != null && hotKeys.record(id) && size != NOT_AVAILABLE)
+			this.promote(id, size, lastModified);
+
+		final IMemoryTier memory = this.memory;
+		if (memory == null || size == NOT_AVAILABLE)
+			return null;
+		final InputStream content = memory.get(id, size, lastModified);
+		if (content != null)
+		{
+			statistics.memoryHits.incrementAndGet();
+			Tools.close(input);
+		}
+		return content;
+	}
+
+	private InputStream getCachedInputStream(String id, InputStream input, long size, long lastModified, ICacheable source) throws IOException
 	{
 		if (input == null)
 		{
@@ -132,10 +689,11 @@ public class FileCache
 			{
 				if (isFileComplete(file) && Files.isReadable(file))
 				{
-					final InputStream bin = new BufferedInputStream(Files.newInputStream(file, StandardOpenOption.READ));
+					final InputStream bin = verify(file, openStream(file), source);
 					InputStream stream = read(file, bin);
 					if (stream != null)
 					{
+						stream = memorizing(id, size, lastModified, stream);
 						if (size == NOT_AVAILABLE && lastModified == NOT_AVAILABLE)
 							LOGGER.warn("Could not receive the resource " + id + " from the server. Using the latest cached version.");
 						else
@@ -152,14 +710,31 @@ public class FileCache
 		}
 
 		final Path file = getCacheFile(id, size, lastModified);
-		final String uid = getUID(id, size, lastModified);
+		final Path staging = stagingFile(file);
+		final String uid = file.toString(); // loaders are shared by the streams of one cache directory only
 
-		if (Files.exists(file)) // space already reserved
+		if (Files.exists(file) || Files.exists(staging)) // space already reserved
 		{
+			if (Files.exists(chunkMap(file)) && !isFileComplete(file))
+			{
+				// chunks can only be loaded through an IRangeCacheable
+				LOGGER.info("No data cached, incomplete chunked entry " + id);
+				return input;
+			}
+
 			// already downloading?
-			InputStream stream = CachedInputStream.getStreamFromLoader(uid);
-			if (stream != null)
+			CachedInputStream follower = CachedInputStream.getStreamFromLoader(uid);
+			InputStream stream = follower;
+			if (follower != null)
 			{
+				try
+				{
+					follower.setReader(openChannel(file, false));
+				}
+				catch (IOException e)
+				{
+					// read through the loader
+				}
 				Tools.close(input); // another open stream already exists.
 				LOGGER.info("Read from cache stream " + id);
 				final InputStream in = read(file, stream);
@@ -177,11 +752,12 @@ public class FileCache
 				{
 					LOGGER.info("Read from cache " + id);
 
-					final InputStream bin = new BufferedInputStream(Files.newInputStream(file, StandardOpenOption.READ));
+					final InputStream bin = verify(file, openStream(file), null);
 					stream = read(file, bin);
 					if (stream != null)
 					{
 						Tools.close(input);
+						stream = memorizing(id, size, lastModified, stream);
 					}
 					else
 					{
@@ -189,7 +765,7 @@ public class FileCache
 						// could not create ReadLock -> backupStream
 						try
 						{
-							stream = new HybridInputStream(input, Files.newByteChannel(file, StandardOpenOption.READ));
+							stream = new HybridInputStream(input, openChannel(file, false), directBuffers);
 						}
 						catch (IOException e)
 						{
@@ -200,19 +776,19 @@ public class FileCache
 					return stream;
 				}
 			}
-			else if (Files.isWritable(file)) // try resume
+			else if (Files.isWritable(staging)) // try resume
 			{
 				LOGGER.info("Resume data in cache " + id);
 				InputStream in = write(file, input);
 				if (in != null)
-					return new CachedInputStream(in, Files.newByteChannel(file, StandardOpenOption.READ, StandardOpenOption.WRITE), uid,
-						true);
+					return new CachedInputStream(in, openWritable(file), uid, true, new Checksums(crcFile(file)), loadListener(file),
+						heapBuffers, followerWindows, executor);
 			}
 
-			if (Files.isReadable(file))
+			if (Files.isReadable(staging))
 			{
 				LOGGER.info("Hybrid data read cache " + id);
-				stream = new HybridInputStream(input, Files.newByteChannel(file, StandardOpenOption.READ));
+				stream = new HybridInputStream(input, openChannel(file, false), directBuffers);
 				InputStream in = read(file, stream);
 
 				if (in != null)
@@ -222,14 +798,18 @@ public class FileCache
 			}
 		}
 		// not Cached
-		if (spaceAvailable(file, size))
+		if (compression && Files.notExists(staging) && !createCodecIndex(file))
+			return input;
+		if (spaceAvailable(staging, size, true))
 		{
 			LOGGER.info("Create data in cache " + id);
 			final InputStream in = write(file, input);
-			if (in != null && Files.isWritable(file))
+			if (in != null && Files.isWritable(staging))
 			{
-				SeekableByteChannel chan = Files.newByteChannel(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
-				CachedInputStream cachedIn = new CachedInputStream(in, chan, uid);
+				preallocate(file, size);
+				SeekableByteChannel chan = openWritable(file);
+				CachedInputStream cachedIn = new CachedInputStream(in, chan, uid, false, new Checksums(crcFile(file)), loadListener(file),
+					heapBuffers, followerWindows, executor);
 				final InputStream cin = read(file, cachedIn);
 				if (cin != null)
 					return cin;
@@ -238,72 +818,618 @@ public class FileCache
 			}
 		}
 
+		if (compression && Files.notExists(staging))
+			Files.deleteIfExists(codecIndex(file));
+
 		LOGGER.info("No data cached " + id);
 		return input; // everything else failed, so just load from stream
 						// directly without caching
 	}
 
-	public long currentSize()
+	/**
+	 * Promotes a complete entry whose source has become hot. Small entries are put into the memory
+	 * tier, larger ones are read into the page cache in the background.
+	 */
+	private void promote(final String id, final long size, final long lastModified)
 	{
-		currentSize = 0;
-		final ArrayDeque<Path> content = dirWatcher.getActualContent();
-		for (Path p : content)
+		try
 		{
-			if (!Files.isDirectory(p))
+			executor.execute(new Runnable()
 			{
-				currentSize += getSize(p);
-			}
-		}
-		return currentSize;
-	}
 
-	public long sizeLimit()
-	{
-		return this.sizelimit;
+				@Override
+				public void run()
+				{
+					if (FileCache.this.promoteNow(id, size, lastModified))
+						statistics.promotions.incrementAndGet();
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			// closed in the meantime
+		}
 	}
 
 	/**
-	 * check if space is Available, if not try to free it up and create file
+	 * @return Whether the entry has been promoted.
 	 */
-	private boolean spaceAvailable(Path file, long size)
+	private boolean promoteNow(String id, long size, long lastModified)
 	{
-		try
-		{
-			Files.createDirectories(file.getParent());
-			Files.createFile(file);
-		}
-		catch (IOException e)
-		{
+		final Path file = getCacheFile(id, size, lastModified);
+		if (!isFileComplete(file))
 			return false;
-		}
 
-		long boundlessSize = boundless();
+		final IMemoryTier memory = this.memory;
+		if (memory == null || size > memory.maxEntrySize())
+			return this.warmUp(file);
 
-		if (currentSize + boundlessSize > sizelimit)
+		final InputStream kept = memory.get(id, size, lastModified);
+		if (kept != null)
 		{
-			TreeMap<FileTime, Path> files = getLastModifiedFiles();
+			Tools.close(kept);
+			return false;
+		}
 
-			while (currentSize + boundlessSize > sizelimit && !files.isEmpty())
+		try
+		{
+			final InputStream in;
+			synchronized (this)
 			{
-				Path f = files.pollFirstEntry().getValue();
-				Path p = f.getParent();
-				f = f.getFileName();
-				while (!p.endsWith(Paths.get("lastModified")))
+				// the entry must not be evicted while it is read
+				final InputStream bin = verify(file, openStream(file), null);
+				in = read(file, bin);
+				if (in == null)
 				{
-					f = p.getFileName().resolve(f);
-					p = p.getParent();
+					Tools.close(bin);
+					return false;
 				}
-				f = p.getParent().resolve(f);
+			}
+			Tools.close(memorize(id, size, lastModified, in));
+		}
+		catch (IOException e)
+		{
+			LOGGER.warn("Could not promote " + file, e);
+			return false;
+		}
+		final InputStream promoted = memory.get(id, size, lastModified);
+		Tools.close(promoted);
+		return promoted != null;
+	}
+
+	/**
+	 * Reads the given file, the content is in the page cache afterwards.
+	 * @return Whether the file has been read completely.
+	 */
+	private boolean warmUp(Path file)
+	{
+		final BufferPool buffers = directBuffers;
+		final ByteBuffer buf = buffers.acquire();
+		FileChannel chan = null;
+		try
+		{
+			chan = FileChannel.open(file, StandardOpenOption.READ);
+			while (chan.read(buf) >= 0)
+				buf.clear();
+			return true;
+		}
+		catch (IOException e)
+		{
+			return false; // evicted in the meantime
+		}
+		finally
+		{
+			Tools.close(chan);
+			buffers.release(buf);
+		}
+	}
+
+	/**
+	 * @return A stream that keeps a small complete entry in the memory tier once the caller has
+	 *         read it, or the given stream if the entry is not kept in memory.
+	 */
+	private InputStream memorizing(String id, long size, long lastModified, InputStream in)
+	{
+		final IMemoryTier memory = this.memory;
+		if (memory == null || size == NOT_AVAILABLE || size > memory.maxEntrySize())
+			return in;
+		return new MemorizingInputStream(in, memory, id, size, lastModified);
+	}
+
+	/**
+	 * Reads a small complete entry and keeps it in the memory tier.
+	 * @return A stream on the content or the given stream if the entry is not kept in memory.
+	 */
+	private InputStream memorize(String id, long size, long lastModified, InputStream in) throws IOException
+	{
+		final IMemoryTier memory = this.memory;
+		if (memory == null || size == NOT_AVAILABLE || size > memory.maxEntrySize())
+			return in;
+
+		final byte[] content = new byte[(int)size];
+		int length = 0;
+		try
+		{
+			while (length < content.length)
+			{
+				final int read = in.read(content, length, content.length - length);
+				if (read < 0)
+					break;
+				length += read;
+			}
+		}
+		finally
+		{
+			Tools.close(in);
+		}
+		if (length == content.length)
+			memory.put(id, size, lastModified, content);
+		return new ByteArrayInputStream(content, 0, length);
+	}
+
+	/**
+	 * Wraps the stream on a complete entry to verify its content while it is read.
+	 */
+	private InputStream verify(Path file, InputStream in, ICacheable source)
+	{
+		if (!blockVerification || getSize(file) == NOT_AVAILABLE)
+			return in;
+		final int[] crcs = Checksums.read(crcFile(file));
+		if (crcs == null)
+			return in;
+
+		byte[] digest = null;
+		if (digestSampleRate > 0 && verifiedReads++ % digestSampleRate == 0)
+			digest = readDigest(file);
+		return new VerifyingInputStream(in, this, file, source, crcs, digest);
+	}
+
+	private static byte[] readDigest(Path file)
+	{
+		try
+		{
+			return Hex.decodeHex(new String(Files.readAllBytes(digestFile(file))).toCharArray());
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+		catch (DecoderException e)
+		{
+			return null;
+		}
+	}
+
+	private ILoadListener loadListener(final Path file)
+	{
+		// plain entries of a known size have reserved their space when they were created, chunked entries reserve each chunk
+		final boolean reserved = getSize(file) != NOT_AVAILABLE;
+		return new ILoadListener()
+		{
+			@Override
+			public void loaded(long length, byte[] digest)
+			{
+				FileCache.this.loaded(file, length, digest);
+			}
 
-				delete(f);
-				if (currentSize + boundlessSize < sizelimit)
-					currentSize();
+			@Override
+			public void written(long bytes)
+			{
+				if (!reserved)
+					FileCache.this.account(file, bytes);
 			}
+
+			@Override
+			public void reserve(long bytes)
+			{
+				synchronized (FileCache.this)
+				{
+					FileCache.this.account(file, bytes);
+					FileCache.this.makeRoom(file);
+				}
+			}
+
+			@Override
+			public void release(long bytes)
+			{
+				FileCache.this.account(file, -bytes);
+			}
+
+			@Override
+			public void complete()
+			{
+				FileCache.this.completed(file);
+			}
+		};
+	}
+
+	/**
+	 * Called when the source of an entry has been read completely. A complete entry is moved from
+	 * the staging directory to its path. Entries with identical content are stored only once: the
+	 * first one is linked as content blob, all others are replaced by a hard link to that blob.
+	 * The link count of a blob is its reference count. Must not lock the cache, the loader of the
+	 * entry is still locked.
+	 */
+	private void loaded(Path file, long length, byte[] digest)
+	{
+		final long size = getSize(file);
+		if (size != NOT_AVAILABLE && length != size)
+			return; // incomplete, stays in the staging directory to be resumed
+
+		// forced before it is published, unless forced later in the background
+		final boolean wait = syncer.durability() == Durability.ON_COMPLETE;
+		if (wait)
+			this.sync(stagingFile(file));
+		if (!publish(file))
+			return;
+		try
+		{
+			// removed last, a staging file without marker would look complete after a crash
+			Files.deleteIfExists(fillMarker(file));
+		}
+		catch (IOException e)
+		{
+			LOGGER.warn("Could not remove the fill marker of " + file, e);
+		}
+		if (!wait)
+			this.sync(file);
+		// the content has been counted uncompressed
+		this.account(file, storedSize(file) - (size == NOT_AVAILABLE ? length : size));
+		if (size == NOT_AVAILABLE) // not seen by the watcher of the cache directory
+			this.completed(file);
+
+		final IMemoryTier memory = this.memory;
+		if (memory != null)
+		{
+			memory.remove(getID(file)); // replaces older versions of the source
+			if (size != NOT_AVAILABLE && size <= memory.maxEntrySize())
+				try
+				{
+					Tools.close(memorize(getID(file), size, getLastModified(file), openStream(file)));
+				}
+				catch (IOException e)
+				{
+					LOGGER.warn("Could not keep " + file + " in memory", e);
+				}
+		}
+		if (digest == null || size == NOT_AVAILABLE)
+			return;
+
+		final String hex = Hex.encodeHexString(digest);
+		final Path blob = blobDir.resolve(hex);
+		try
+		{
+			final Path digestFile = digestFile(file);
+			Files.createDirectories(digestFile.getParent());
+			Files.write(digestFile, hex.getBytes());
+			if (!links || Files.exists(codecIndex(file)))
+				return;
+
+			Files.createDirectories(blobDir);
 			try
 			{
-				if (currentSize + boundlessSize > sizelimit
+				Files.createLink(blob, file);
+				return; // first entry with this content
+			}
+			catch (FileAlreadyExistsException e)
+			{
+				// content already stored
+			}
+
+			final Path link = blobDir.resolve(hex + '.' + uID);
+			Files.deleteIfExists(link);
+			Files.createLink(link, blob);
+			Files.move(link, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			this.account(file, -size);
+			LOGGER.info("Deduplicated content of " + getID(file));
+		}
+		catch (IOException e)
+		{
+			LOGGER.warn("Could not deduplicate " + file, e);
+		}
+		catch (UnsupportedOperationException e)
+		{
+			LOGGER.warn("Could not deduplicate " + file, e);
+		}
+	}
+
+	private void sync(Path content)
+	{
+		try
+		{
+			syncer.sync(content);
+		}
+		catch (InterruptedIOException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Moves a complete entry from the staging directory to its path. Readers that opened the
+	 * staging file keep reading the same file.
+	 */
+	private static boolean publish(Path file)
+	{
+		try
+		{
+			Files.move(stagingFile(file), file, StandardCopyOption.ATOMIC_MOVE);
+			return true;
+		}
+		catch (IOException e)
+		{
+			LOGGER.warn("Could not publish cache file " + file, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Extends a new entry of a known size to its size before it is written. The number of
+	 * written bytes is tracked in a marker until the entry is complete.
+	 */
+	private static void preallocate(Path file, long size)
+	{
+		if (size < PreallocatedChannel.MIN_SIZE || Files.exists(codecIndex(file)))
+			return;
+		try
+		{
+			PreallocatedChannel.create(stagingFile(file), fillMarker(file), size);
+		}
+		catch (IOException e)
+		{
+			LOGGER.warn("Could not preallocate " + file, e);
+			SeekableByteChannel chan = null;
+			try
+			{
+				Files.deleteIfExists(fillMarker(file));
+				chan = Files.newByteChannel(stagingFile(file), StandardOpenOption.WRITE);
+				chan.truncate(0);
+			}
+			catch (IOException ioe)
+			{
+				// nothing
+			}
+			finally
+			{
+				Tools.close(chan);
+			}
+		}
+	}
+
+	/**
+	 * Marks a new entry as compressed.
+	 */
+	private static boolean createCodecIndex(Path file)
+	{
+		try
+		{
+			CompressedChannel.create(codecIndex(file));
+			return true;
+		}
+		catch (IOException e)
+		{
+			LOGGER.warn("Could not create compressed entry " + file, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Opens the channel to load an entry. Uses direct I/O for large entries, if enabled.
+	 */
+	private SeekableByteChannel openWritable(Path file) throws IOException
+	{
+		final SeekableByteChannel chan = openChannel(file, true);
+		if (directThreshold != NOT_AVAILABLE && getSize(file) >= directThreshold && chan instanceof PreallocatedChannel)
+			((PreallocatedChannel)chan).useDirectIO(stagingFile(file));
+		return chan;
+	}
+
+	/**
+	 * Opens a channel on the content of the given entry. Compressed files are decompressed
+	 * transparently. Entries are written in the staging directory, they are read from there until
+	 * they are complete.
+	 */
+	private static SeekableByteChannel openChannel(Path file, boolean writable) throws IOException
+	{
+		if (writable || Files.notExists(file))
+		{
+			try
+			{
+				return openChannel(file, stagingFile(file), writable);
+			}
+			catch (NoSuchFileException e)
+			{
+				if (writable || Files.notExists(file))
+					throw e;
+				// completed in the meantime
+			}
+		}
+		return openChannel(file, file, false);
+	}
+
+	private static SeekableByteChannel openChannel(Path file, Path content, boolean writable) throws IOException
+	{
+		final Path codecIndex = codecIndex(file);
+		if (Files.exists(codecIndex))
+			return CompressedChannel.open(content, codecIndex, writable);
+		final Path fillMarker = fillMarker(file);
+		if (content != file && Files.exists(fillMarker))
+			return PreallocatedChannel.open(content, fillMarker, writable);
+		if (writable)
+			return Files.newByteChannel(content, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		return Files.newByteChannel(content, StandardOpenOption.READ);
+	}
+
+	private InputStream openStream(Path file) throws IOException
+	{
+		final Path codecIndex = codecIndex(file);
+		if (Files.exists(codecIndex))
+			return new BufferedInputStream(Channels.newInputStream(CompressedChannel.open(file, codecIndex, false)), heapBuffers.bufferSize());
+		return new BufferedInputStream(Files.newInputStream(file, StandardOpenOption.READ), heapBuffers.bufferSize());
+	}
+
+	/**
+	 * @return The number of bytes occupied by the entries of a known size. The number is
+	 *         maintained while entries are loaded and removed, and is reconciled with the cache
+	 *         directory from time to time. Entries of an unknown size are counted separately, see
+	 *         {@link CacheStatistics#getBoundlessBytes()}.
+	 */
+	public long currentSize()
+	{
+		return statistics.cachedBytes.get();
+	}
+
+	/**
+	 * Counts the given number of bytes for the area of the given entry.
+	 */
+	private void account(Path file, long bytes)
+	{
+		if (bytes != 0)
+			(getSize(file) == NOT_AVAILABLE ? statistics.boundlessBytes : statistics.cachedBytes).addAndGet(bytes);
+	}
+
+	/**
+	 * @return Whether the given entry is included in the occupied bytes. Until the index is
+	 *         loaded, only the entries loaded since the start are, the others are added by the
+	 *         scan of the index if they still exist.
+	 */
+	private boolean isCounted(Path file)
+	{
+		return isIndexLoaded() || getSize(file) == NOT_AVAILABLE || unindexed.contains(file);
+	}
+
+	/**
+	 * Starts a reconciliation in the background if the last one is older than the
+	 * {@link #RECONCILE_INTERVAL}.
+	 */
+	private void reconcileLater()
+	{
+		if (closed || System.currentTimeMillis() - reconciled < RECONCILE_INTERVAL || !reconciling.compareAndSet(false, true))
+			return;
+		executor.execute(new Runnable()
+		{
+
+			@Override
+			public void run()
+			{
+				try
+				{
+					FileCache.this.reconcile(FileCache.this.index());
+				}
+				finally
+				{
+					reconciling.set(false);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Corrects the occupied bytes by the content of the cache directory. The counters drift,
+	 * e.g. if other processes use the same directory. Changes while the directory is scanned are
+	 * kept.
+	 */
+	private void reconcile(DirectoryContent watcher)
+	{
+		reconciled = System.currentTimeMillis();
+		final long cached = statistics.cachedBytes.get();
+		final long boundless = statistics.boundlessBytes.get();
+		statistics.cachedBytes.addAndGet(this.scanSize(watcher) - cached);
+		statistics.boundlessBytes.addAndGet(DirectorySize.directorySize(boundlessDir, true, scanPool) - boundless);
+		statistics.reconciliations.incrementAndGet();
+	}
+
+	/**
+	 * @return The number of bytes occupied by the entries of a known size, scanned from the cache
+	 *         directory.
+	 */
+	private long scanSize(DirectoryContent watcher)
+	{
+		long size = 0;
+		final HashSet<Object> blobs = new HashSet<Object>();
+		// the files are read after the watcher is unlocked, the shared dispatcher is not blocked meanwhile
+		for (Path p : watcher.getActualContent())
+			if (!Files.isDirectory(p) && !unindexed.contains(p))
+			{
+				// count deduplicated content only once
+				if (links && linkCount(p) > 1 && !blobs.add(fileKey(p)))
+					continue;
+				size += storedSize(p);
+			}
+		// entries that are loaded occupy their space already
+		for (Path p : DirectoryContent.directoryContent(stagingDir, false))
+			if (!unindexed.contains(cacheDir.resolve(p.getFileName())))
+				size += storedSize(cacheDir.resolve(p.getFileName()));
+		return size;
+	}
+
+	public long sizeLimit()
+	{
+		return this.sizelimit;
+	}
+
+	/**
+	 * Reserves the space of a new chunked entry. Chunked entries are written in place, the chunk
+	 * map is created first, it marks the entry as incomplete.
+	 */
+	private boolean reserveChunked(Path file, long size)
+	{
+		final Path chunkMap = chunkMap(file);
+		try
+		{
+			Files.createDirectories(chunkMap.getParent());
+			Files.createFile(chunkMap);
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+
+		if (spaceAvailable(file, size, false))
+			return true;
+		try
+		{
+			Files.deleteIfExists(chunkMap);
+		}
+		catch (IOException e)
+		{
+			// nothing
+		}
+		return false;
+	}
+
+	/**
+	 * check if space is Available, if not try to free it up and create file
+	 * @param reserve Whether the size of the entry is counted right away, otherwise it is counted
+	 *            as it is written.
+	 */
+	private boolean spaceAvailable(Path file, long size, boolean reserve)
+	{
+		try
+		{
+			Files.createDirectories(file.getParent());
+			Files.createFile(file);
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+
+		final long reserved = reserve && size != NOT_AVAILABLE ? size : 0;
+		statistics.cachedBytes.addAndGet(reserved);
+		if (size != NOT_AVAILABLE && !isIndexLoaded()) // counted already, the index must not count it again
+			unindexed.add(file.getParent().equals(stagingDir) ? cacheDir.resolve(file.getFileName()) : file);
+		this.reconcileLater();
+
+		this.makeRoom(file);
+		if (occupied() > sizelimit)
+		{
+			try
+			{
+				if (occupied() > sizelimit
 					|| (size != -1 && Files.getFileStore(cacheDir).getUnallocatedSpace() < size))
 				{
+					statistics.cachedBytes.addAndGet(-reserved);
 					Files.delete(file);
 					return false;
 				}
@@ -322,12 +1448,47 @@ public class FileCache
 			}
 		}
 
-		return true;
+		return true;
+	}
+
+	/**
+	 * Evicts the least recently used entries until the occupied bytes are within the limit.
+	 * @param keep The entry that is being loaded, it is not evicted.
+	 */
+	private void makeRoom(Path keep)
+	{
+		if (occupied() > sizelimit && !isIndexLoaded())
+			this.index(); // entries are evicted by the counted bytes
+		if (occupied() <= sizelimit)
+			return;
+
+		final TreeMap<FileTime, Path> files = getLastModifiedFiles();
+		while (occupied() > sizelimit && !files.isEmpty())
+		{
+			Path f = files.pollFirstEntry().getValue();
+			Path p = f.getParent();
+			final String name = f.getFileName().toString();
+			if (!name.endsWith(MODIFIED))
+				continue;
+			f = Paths.get(name.substring(0, name.length() - MODIFIED.length())); // the entry of the access time
+			while (!p.endsWith(Paths.get("lastModified")))
+			{
+				f = p.getFileName().resolve(f);
+				p = p.getParent();
+			}
+			f = p.getParent().resolve(f);
+
+			if (!f.equals(keep))
+				evict(f, occupied() - sizelimit);
+		}
 	}
 
-	private long boundless()
+	/**
+	 * @return The number of bytes occupied by all entries.
+	 */
+	private long occupied()
 	{
-		return DirectorySize.directorySize(boundlessDir, true);
+		return statistics.cachedBytes.get() + statistics.boundlessBytes.get();
 	}
 
 	private TreeMap<FileTime, Path> getLastModifiedFiles()
@@ -430,47 +1591,169 @@ public class FileCache
 		}
 	}
 
+	/**
+	 * Frees at least the given number of bytes by evicting the given file. Chunked entries lose
+	 * their tail chunks first, all other files are deleted.
+	 */
+	private boolean evict(Path file, long excess)
+	{
+		final Path chunkMap = chunkMap(file);
+		if (Files.notExists(chunkMap) || ChunkMap.presentBytes(chunkMap) <= excess)
+			return delete(file);
+		return trim(file, excess);
+	}
+
 	/**
 	 * try to delete a file. return true if no other process is reading the file and it could be
 	 * deleted.
 	 */
 	private boolean delete(Path file)
 	{
-		if (checkLock(writeLock(file)) || checkLock(readLocks(file)))
-		{
+		final FileLock deleteLock = removalLock(file);
+		if (deleteLock == null)
 			return false;
+
+		try
+		{
+			this.remove(file);
+			Files.deleteIfExists(readLocks(file));
+		}
+		catch (IOException e)
+		{
+			// nothing
+		}
+		finally
+		{
+			removeLock(deleteLock(file), deleteLock);
 		}
 
-		Path lockFile = deleteLock(file);
-		FileLock deleteLock = createLock(lockFile);
+		return true;
 
-		if (deleteLock == null)
-			return false;
+	}
 
-		if (checkLock(writeLock(file)) || checkLock(readLocks(file)))
+	/**
+	 * Removes an entry whose content is corrupt, regardless of other readers. Readers that still
+	 * have the file open keep reading the old content. The content blob is removed as well, so
+	 * that new entries are not linked to the corrupt content.
+	 */
+	synchronized void invalidate(Path file)
+	{
+		LOGGER.warn("Invalidate corrupt cache file " + file);
+		final IMemoryTier memory = this.memory;
+		if (memory != null)
+			memory.remove(getID(file));
+		if (events.hasListeners() && Files.exists(file))
+			invalidated.add(file);
+		try
 		{
-			removeLock(lockFile, deleteLock);
-			return false;
+			final Path blob = blobOf(file);
+			this.remove(file);
+			if (blob != null)
+				Files.deleteIfExists(blob);
 		}
+		catch (IOException e)
+		{
+			LOGGER.warn("Could not invalidate cache file " + file, e);
+		}
+	}
+
+	/**
+	 * Deletes the given entry with its side files and the content blob if it is no longer
+	 * referenced.
+	 */
+	private void remove(Path file) throws IOException
+	{
+		final boolean counted = this.isCounted(file);
+		final Path blob = blobOf(file);
+		if (counted && Files.exists(file) && (blob == null || linkCount(file) <= 2))
+			this.account(file, -storedSize(file));
+		// entries of an unknown size have been counted as they were written
+		final Path staging = stagingFile(file);
+		final long staged = getSize(file) == NOT_AVAILABLE ? fileSize(staging) : storedSize(file);
+		if (Files.deleteIfExists(staging) && counted)
+			this.account(file, -staged);
+		unindexed.remove(file);
+		if (Files.deleteIfExists(file) && getSize(file) == NOT_AVAILABLE && events.hasListeners())
+			this.removed(file); // not seen by the watcher of the cache directory
+		Files.deleteIfExists(chunkMap(file));
+		Files.deleteIfExists(codecIndex(file));
+		Files.deleteIfExists(digestFile(file));
+		Files.deleteIfExists(crcFile(file));
+		Files.deleteIfExists(fillMarker(file));
+		Files.deleteIfExists(lastAccessedFile(file));
+		if (blob != null && linkCount(blob) == 1) // no longer referenced
+			Files.deleteIfExists(blob);
+	}
+
+	/**
+	 * try to remove the tail chunks of a chunked entry until at least the given number of bytes
+	 * is freed. return true if no other process is reading the file and it could be trimmed.
+	 */
+	private boolean trim(Path file, long excess)
+	{
+		final FileLock deleteLock = removalLock(file);
+		if (deleteLock == null)
+			return false;
 
+		ChunkMap map = null;
+		FileChannel chan = null;
+		boolean trimmed = false;
 		try
 		{
-			currentSize -= getSize(file);
-			Files.deleteIfExists(file);
-			Files.deleteIfExists(readLocks(file));
-			Files.deleteIfExists(lastAccessedFile(file));
+			chan = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			map = ChunkMap.open(chunkMap(file), getSize(file), chunkSize, chan);
+			int keep = map.chunkCount();
+			long freed = 0;
+			while (keep > 0 && freed < excess)
+			{
+				keep--;
+				if (map.isPresent(keep))
+					freed += map.chunkLength(keep);
+			}
+			map.clearFrom(keep);
+			chan.truncate(map.chunkOffset(keep));
+			this.account(file, -freed);
+			trimmed = true;
 		}
 		catch (IOException e)
 		{
-			// nothing
+			LOGGER.warn("Could not trim chunked entry " + file, e);
 		}
 		finally
 		{
-			removeLock(lockFile, deleteLock);
+			Tools.close(chan);
+			Tools.close(map);
+			removeLock(deleteLock(file), deleteLock);
 		}
 
-		return true;
+		return trimmed;
+	}
+
+	/**
+	 * Creates the delete lock of a file if no other process is reading or writing it.
+	 *
+	 * @return The delete lock or null if the file is in use.
+	 */
+	private FileLock removalLock(Path file)
+	{
+		if (checkLock(writeLock(file)) || checkLock(readLocks(file)))
+		{
+			return null;
+		}
+
+		Path lockFile = deleteLock(file);
+		FileLock deleteLock = createLock(lockFile);
+
+		if (deleteLock == null)
+			return null;
+
+		if (checkLock(writeLock(file)) || checkLock(readLocks(file)))
+		{
+			removeLock(lockFile, deleteLock);
+			return null;
+		}
 
+		return deleteLock;
 	}
 
 	private FileLock createLock(Path lockFile)
@@ -510,6 +1793,11 @@ public class FileCache
 			Tools.close(channel);
 			return null;
 		}
+		catch (OverlappingFileLockException e)
+		{
+			Tools.close(channel); // held by another thread of this jVM
+			return null;
+		}
 	}
 
 	private void removeLock(Path lockFile, FileLock lock)
@@ -540,7 +1828,7 @@ public class FileCache
 			return null;
 		}
 
-		else if (Files.exists(file))
+		else if (Files.exists(file) || Files.exists(stagingFile(file)))
 		{
 			FileLock lock = createLock(rLock);
 			if (lock != null)
@@ -571,20 +1859,26 @@ public class FileCache
 		return this.cacheDir.resolve(filename);
 	}
 
-	Path getLatestVersionCacheFile(String id)
+	Path getLatestVersionCacheFile(final String id)
 	{
-		Path filename = null;
-		long lastModified = 0;
-
-		final ArrayDeque<Path> content = dirWatcher.getActualContent();
-		for (Path path : content)
+		final Path[] latest = new Path[1];
+		this.index().visitActualContent(new DirectoryContent.IVisitor()
 		{
-			if (getID(path).equals(id) && getLastModified(path) > lastModified)
+			private long lastModified = 0;
+
+			@Override
+			public boolean visit(Path path)
 			{
-				filename = path;
-				lastModified = getLastModified(path);
+				// decoded from the name only, the dispatcher is locked while the content is visited
+				if (isEntry(path) && getID(path).equals(id) && getLastModified(path) > lastModified)
+				{
+					latest[0] = path;
+					lastModified = getLastModified(path);
+				}
+				return true;
 			}
-		}
+		});
+		Path filename = latest[0];
 		if (filename == null)
 			filename = this.boundlessDir.resolve(getUID(id, NOT_AVAILABLE, NOT_AVAILABLE));
 
@@ -627,6 +1921,96 @@ public class FileCache
 		return new String(id);
 	}
 
+	/**
+	 * @return The number of bytes the given entry occupies in the cache. Equals the size of the
+	 *         entry except for chunked entries with missing chunks, compressed entries and entries
+	 *         of an unknown size.
+	 */
+	static long storedSize(Path file)
+	{
+		if (Files.exists(codecIndex(file)))
+		{
+			try
+			{
+				return Files.size(file);
+			}
+			catch (IOException e)
+			{
+				// fall through
+			}
+		}
+
+		final Path chunkMap = chunkMap(file);
+		if (Files.exists(chunkMap))
+		{
+			final long present = ChunkMap.presentBytes(chunkMap);
+			if (present >= 0)
+				return present;
+		}
+		final long size = getSize(file);
+		return size == NOT_AVAILABLE ? fileSize(file) : size;
+	}
+
+	private static long fileSize(Path file)
+	{
+		try
+		{
+			return Files.size(file);
+		}
+		catch (IOException e)
+		{
+			return 0;
+		}
+	}
+
+	/**
+	 * @return The content blob the given entry is linked to or <i>null</i> if the entry is not
+	 *         deduplicated.
+	 */
+	private Path blobOf(Path file)
+	{
+		final Path digestFile = digestFile(file);
+		if (!links || Files.notExists(digestFile))
+			return null;
+		try
+		{
+			return blobDir.resolve(new String(Files.readAllBytes(digestFile)));
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+
+	private static int linkCount(Path file)
+	{
+		try
+		{
+			return ((Integer)Files.getAttribute(file, "unix:nlink")).intValue();
+		}
+		catch (IOException e)
+		{
+			return 1;
+		}
+		catch (UnsupportedOperationException e)
+		{
+			return 1;
+		}
+	}
+
+	private static Object fileKey(Path file)
+	{
+		try
+		{
+			final Object key = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+			return key != null ? key : file;
+		}
+		catch (IOException e)
+		{
+			return file;
+		}
+	}
+
 	private static void accessUpdate(Path file)
 	{
 		final Path lastAccessed = lastAccessedFile(file);
@@ -656,8 +2040,8 @@ public class FileCache
 	{
 		if (getSize(file) == -1)
 			return file.getParent().getParent()
-				.resolveSibling("lastModified" + File.separatorChar + "boundless" + File.separatorChar + file.getFileName() + ".modified");
-		return file.resolveSibling("lastModified" + File.separatorChar + file.getFileName() + ".modified");
+				.resolveSibling("lastModified" + File.separatorChar + "boundless" + File.separatorChar + file.getFileName() + MODIFIED);
+		return file.resolveSibling("lastModified" + File.separatorChar + file.getFileName() + MODIFIED);
 	}
 
 	private Path readLock(Path file)
@@ -680,46 +2064,358 @@ public class FileCache
 		return file.resolveSibling("wlock" + File.separatorChar + file.getFileName() + ".wlock");
 	}
 
+	private static Path chunkMap(Path file)
+	{
+		return file.resolveSibling("chunks" + File.separatorChar + file.getFileName() + ".chunks");
+	}
+
+	private static Path codecIndex(Path file)
+	{
+		return file.resolveSibling("codec" + File.separatorChar + file.getFileName() + ".codec");
+	}
+
+	private static Path digestFile(Path file)
+	{
+		return file.resolveSibling("digest" + File.separatorChar + file.getFileName() + ".digest");
+	}
+
+	private static Path crcFile(Path file)
+	{
+		return file.resolveSibling("crc" + File.separatorChar + file.getFileName() + ".crc");
+	}
+
+	private static Path stagingFile(Path file)
+	{
+		return file.resolveSibling(STAGING + File.separatorChar + file.getFileName());
+	}
+
+	private static Path fillMarker(Path file)
+	{
+		return file.resolveSibling("fill" + File.separatorChar + file.getFileName() + ".fill");
+	}
+
+	/**
+	 * @return Whether the entries of the directory of the given file are loaded in a staging directory. Only entries
+	 *         of directories without one may have been written in place by older versions.
+	 */
+	private static boolean isStaged(Path file)
+	{
+		final Path dir = file.resolveSibling(STAGING);
+		if (stagingDirs.contains(dir))
+			return true;
+		if (!Files.isDirectory(dir))
+			return false;
+		stagingDirs.add(dir);
+		return true;
+	}
+
 	static boolean isFileComplete(Path file)
 	{
-		// check if active wlock is set
-		if (checkLock(writeLock(file)))
+		// chunked entries are complete if all chunks are present
+		final Path chunkMap = chunkMap(file);
+		if (Files.exists(chunkMap))
+			return ChunkMap.presentBytes(chunkMap) == getSize(file);
+
+		// all other entries are loaded in the staging directory and moved to their path when complete
+		final long stored;
+		try
+		{
+			stored = Files.size(file);
+		}
+		catch (IOException e)
 		{
 			return false;
 		}
 
-		// if not check size
-		long size = getSize(file);
-		if (size != -1)
-			try
-			{
-				if (Files.size(file) == size)
-					return true;
+		// older versions and other jVMs wrote entries in place, these are complete if all bytes are written
+		final long size = getSize(file);
+		if (size == NOT_AVAILABLE)
+			return isStaged(file) || !checkLock(writeLock(file));
+		if (stored != size)
+		{
+			final Path codecIndex = codecIndex(file);
+			return Files.exists(codecIndex) && CompressedChannel.length(codecIndex) == size;
+		}
+		return Files.notExists(fillMarker(file));
+	}
 
-				return false;
-			}
-			catch (IOException e)
-			{
-				return false; // could not get size, assume incomplete
-			}
+	/**
+	 * Stops the cache. Pending events are delivered to the listeners and pending entries are forced
+	 * to the storage device, the watchers of the cache directory and the threads of the cache are
+	 * stopped. An executor given to the {@link Builder} is not shut down. Work that is already
+	 * running, e.g. loading an entry, is finished first. The slabs of a memory tier off the heap
+	 * are released by the garbage collector. Streams that are open stay readable, their threads
+	 * load and write the rest of the entry. Requests afterwards fail. The content of the cache
+	 * directory is kept.
+	 */
+	@Override
+	public void close()
+	{
+		synchronized (this)
+		{
+			if (closed)
+				return;
+			closed = true;
+		}
+		Tools.close(this.index());
+		scanPool.shutdown();
+		dispatcher.close();
+		events.close();
+		syncer.close();
+		this.memory = null;
+		if (ownsExecutor)
+			executor.shutdown();
+	}
+
+	/**
+	 * @return Whether the cache has been closed.
+	 */
+	public boolean isClosed()
+	{
+		return closed;
+	}
 
-		return true; // unknown file size, assume it's complete.
+	/**
+	 * @param directory The cache directory, e.g. on a tmpfs or a fast disk. Created if it does not
+	 *            exist. A directory should be used by one cache per process only.
+	 * @return A builder of a cache in the given directory.
+	 */
+	public static Builder builder(Path directory)
+	{
+		if (directory == null)
+			throw new IllegalArgumentException("Directory must not be null.");
+		return new Builder(directory);
 	}
 
+	/**
+	 * @return The shared cache of the process, see {@link #setup(String, long)}. Closing it
+	 *         creates a new one on the next call.
+	 */
 	public static final synchronized FileCache instance() throws IOException
 	{
-		if (INSTANCE == null)
+		if (INSTANCE == null || INSTANCE.isClosed())
 		{
-			INSTANCE = new FileCache();
+			INSTANCE = builder(Paths.get(Tools.ensureTempDir(), "cache")).build();
 		}
 		return INSTANCE;
 	}
 
 	public static final synchronized void setup(String name, long limit) throws IOException
 	{
-		if (INSTANCE != null)
+		if (INSTANCE != null && !INSTANCE.isClosed())
 			throw new IllegalStateException("FileCache already initialized.");
-		INSTANCE = new FileCache(name, limit);
+		name = name != null && name.length() > 0 ? name + '_' : "";
+		INSTANCE = builder(Paths.get(Tools.ensureTempDir(), name + "cache")).sizeLimit(limit).build();
+	}
+
+
+	/**
+	 * Configuration of a new cache. The settings correspond to the setters of {@link FileCache},
+	 * which can still be changed after the cache has been built.
+	 */
+	public static class Builder
+	{
+
+		private final Path directory;
+		private long sizeLimit = 1 * 1024 * 1024 * 1024;
+		private int bufferSize = BufferPool.DEFAULT_SIZE;
+		private ExecutorService executor = null;
+		private long chunkThreshold = NOT_AVAILABLE;
+		private int chunkSize = 4 * 1024 * 1024;
+		private int chunkParallelism = 4;
+		private long sparseThreshold = NOT_AVAILABLE;
+		private boolean compression = false;
+		private boolean blockVerification = true;
+		private int digestSampleRate = 100;
+		private long directThreshold = NOT_AVAILABLE;
+		private Durability durability = Durability.NONE;
+		private long commitInterval = 1000;
+		private long memoryCapacity = 0;
+		private int memoryEntrySize = 0;
+		private boolean offHeap = false;
+		private int hotKeySampleRate = 0;
+		private int hotKeys = 64;
+		private int scanParallelism = DirectoryScanner.DEFAULT_PARALLELISM;
+		private int followerWindow = WriteBehind.DEFAULT_WINDOW;
+		private long followerMemory = WriteBehind.DEFAULT_WINDOW_MEMORY;
+
+
+		private Builder(Path directory)
+		{
+			this.directory = directory.toAbsolutePath().normalize();
+		}
+
+		/**
+		 * @param limit The maximum number of bytes of the cache directory, one GB by default.
+		 */
+		public Builder sizeLimit(long limit)
+		{
+			if (limit < 0)
+				throw new IllegalArgumentException("Size limit must not be negative.");
+			this.sizeLimit = limit;
+			return this;
+		}
+
+		/**
+		 * @see FileCache#setBufferSize(int)
+		 */
+		public Builder bufferSize(int bufferSize)
+		{
+			if (bufferSize <= 0)
+				throw new IllegalArgumentException("Buffer size has to be positive.");
+			this.bufferSize = bufferSize;
+			return this;
+		}
+
+		/**
+		 * @param executor The executor of the background work of the cache: loading the index,
+		 *            loading and writing entries and warming up hot entries. It is not shut down
+		 *            when the cache is closed. By default the cache has its own pool of daemon
+		 *            threads.
+		 */
+		public Builder executor(ExecutorService executor)
+		{
+			this.executor = executor;
+			return this;
+		}
+
+		/**
+		 * @param parallelism How many directories are listed in parallel when the directories of
+		 *            the cache are scanned, e.g. when the cache directory is watched or
+		 *            reconciled. Large caches on fast disks are scanned faster with a higher
+		 *            parallelism. The cache has its own pool of scanning threads.
+		 */
+		public Builder scanParallelism(int parallelism)
+		{
+			if (parallelism <= 0)
+				throw new IllegalArgumentException("Parallelism has to be positive.");
+			this.scanParallelism = parallelism;
+			return this;
+		}
+
+		/**
+		 * @see FileCache#setChunkedLayout(long, int, int)
+		 */
+		public Builder chunkedLayout(long threshold, int chunkSize, int parallelism)
+		{
+			if (chunkSize <= 0 || parallelism <= 0)
+				throw new IllegalArgumentException("Chunk size and parallelism have to be positive.");
+			this.chunkThreshold = threshold;
+			this.chunkSize = chunkSize;
+			this.chunkParallelism = parallelism;
+			return this;
+		}
+
+		/**
+		 * @see FileCache#setSparseLayout(long)
+		 */
+		public Builder sparseLayout(long threshold)
+		{
+			this.sparseThreshold = threshold;
+			return this;
+		}
+
+		/**
+		 * @see FileCache#setCompression(boolean)
+		 */
+		public Builder compression(boolean compression)
+		{
+			this.compression = compression;
+			return this;
+		}
+
+		/**
+		 * @see FileCache#setVerification(boolean, int)
+		 */
+		public Builder verification(boolean blocks, int digestSampleRate)
+		{
+			if (digestSampleRate < 0)
+				throw new IllegalArgumentException("Sample rate must not be negative.");
+			this.blockVerification = blocks;
+			this.digestSampleRate = digestSampleRate;
+			return this;
+		}
+
+		/**
+		 * @see FileCache#setFollowerWindow(int, long)
+		 */
+		public Builder followerWindow(int window, long memory)
+		{
+			if (window < 0 || memory < 0)
+				throw new IllegalArgumentException("Window and memory must not be negative.");
+			this.followerWindow = window;
+			this.followerMemory = memory;
+			return this;
+		}
+
+		/**
+		 * @see FileCache#setDirectIO(long)
+		 */
+		public Builder directIO(long threshold)
+		{
+			this.directThreshold = threshold;
+			return this;
+		}
+
+		/**
+		 * @see FileCache#setDurability(Durability, long)
+		 */
+		public Builder durability(Durability durability, long commitInterval)
+		{
+			if (durability == null)
+				throw new IllegalArgumentException("Durability must not be null.");
+			this.durability = durability;
+			this.commitInterval = commitInterval;
+			return this;
+		}
+
+		/**
+		 * @see FileCache#setMemoryTier(long, int, boolean)
+		 */
+		public Builder memoryTier(long capacity, int maxEntrySize, boolean offHeap)
+		{
+			if (capacity < 0 || maxEntrySize < 0)
+				throw new IllegalArgumentException("Capacity and entry size must not be negative.");
+			if (offHeap && capacity > 0 && capacity < SlabMemoryTier.SLAB_SIZE)
+				throw new IllegalArgumentException("Capacity off the heap has to be at least " + SlabMemoryTier.SLAB_SIZE + " bytes.");
+			this.memoryCapacity = capacity;
+			this.memoryEntrySize = maxEntrySize;
+			this.offHeap = offHeap;
+			return this;
+		}
+
+		/**
+		 * @see FileCache#setHotKeyDetection(int, int)
+		 */
+		public Builder hotKeyDetection(int sampleRate, int trackedKeys)
+		{
+			if (sampleRate < 0 || trackedKeys <= 0)
+				throw new IllegalArgumentException("Sample rate must not be negative, tracked keys have to be positive.");
+			this.hotKeySampleRate = sampleRate;
+			this.hotKeys = trackedKeys;
+			return this;
+		}
+
+		/**
+		 * Creates the cache directory and starts loading its index in the background.
+		 * @return The new cache, to be closed by the caller.
+		 */
+		public FileCache build()
+		{
+			final FileCache cache = new FileCache(this);
+			cache.setBufferSize(bufferSize);
+			cache.setChunkedLayout(chunkThreshold, chunkSize, chunkParallelism);
+			cache.setSparseLayout(sparseThreshold);
+			cache.setCompression(compression);
+			cache.setVerification(blockVerification, digestSampleRate);
+			cache.setFollowerWindow(followerWindow, followerMemory);
+			cache.setDirectIO(directThreshold);
+			cache.setDurability(durability, commitInterval);
+			cache.setMemoryTier(memoryCapacity, memoryEntrySize, offHeap);
+			cache.setHotKeyDetection(hotKeySampleRate, hotKeys);
+			return cache;
+		}
+
 	}
 
 }
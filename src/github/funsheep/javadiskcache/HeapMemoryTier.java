@@ -0,0 +1,119 @@
+/*
+	This file is part of the java diskcache library.
+	Copyright (C) 2005-2013 funsheep, cgrote
+
+	This library is subject to the terms of the Mozilla Public License, v. 2.0.
+	You should have received a copy of the MPL along with this library; see the
+	file LICENSE. If not, you can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package github.funsheep.javadiskcache;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Memory tier that keeps the content on the heap. The least recently read entries are evicted first.
+ *
+ * @author funsheep
+ */
+class HeapMemoryTier implements IMemoryTier
+{
+
+	private final long capacity;
+	private final int maxEntrySize;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long used = 0;
+
+
+	/**
+	 * @param capacity The maximum number of bytes kept in memory.
+	 * @param maxEntrySize The size of the largest entry kept in memory.
+	 */
+	HeapMemoryTier(long capacity, int maxEntrySize)
+	{
+		this.capacity = capacity;
+		this.maxEntrySize = (int)Math.min(maxEntrySize, capacity);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized InputStream get(String id, long size, long lastModified)
+	{
+		final Entry entry = entries.get(id);
+		if (entry == null || entry.size != size || entry.lastModified != lastModified)
+			return null;
+		return new ByteArrayInputStream(entry.content);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void put(String id, long size, long lastModified, byte[] content)
+	{
+		this.remove(id);
+		if (content.length > maxEntrySize)
+			return;
+
+		entries.put(id, new Entry(size, lastModified, content));
+		used += content.length;
+		final Iterator<Entry> it = entries.values().iterator();
+		while (used > capacity)
+		{
+			used -= it.next().content.length;
+			it.remove();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void remove(String id)
+	{
+		final Entry entry = entries.remove(id);
+		if (entry != null)
+			used -= entry.content.length;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int maxEntrySize()
+	{
+		return maxEntrySize;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized long used()
+	{
+		return used;
+	}
+
+
+	private static class Entry
+	{
+
+		private final long size;
+		private final long lastModified;
+		private final byte[] content;
+
+
+		Entry(long size, long lastModified, byte[] content)
+		{
+			this.size = size;
+			this.lastModified = lastModified;
+			this.content = content;
+		}
+
+	}
+
+}
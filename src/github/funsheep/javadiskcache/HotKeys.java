@@ -0,0 +1,140 @@
+/*
+	This file is part of the java diskcache library.
+	Copyright (C) 2005-2013 funsheep, cgrote
+
+	This library is subject to the terms of the Mozilla Public License, v. 2.0.
+	You should have received a copy of the MPL along with this library; see the
+	file LICENSE. If not, you can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package github.funsheep.javadiskcache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Detects the source ids that dominate the requests. Only every n-th request is sampled, the other requests do not lock
+ * the detector. The sampled ids are counted with the space-saving algorithm: a fixed number of ids is tracked, an id that
+ * is not tracked replaces the one with the lowest count and inherits its count as possible error. The counts are halved
+ * periodically, the detector therefore follows changes of the traffic.
+ *
+ * @author funsheep
+ */
+class HotKeys
+{
+
+	/** Number of samples after which the counts are halved. */
+	static final int DECAY_INTERVAL = 4096;
+	/** Number of samples (without the possible error) after which an id is hot. */
+	static final int HOT_SAMPLES = 8;
+
+	private final int sampleRate;
+	private final int capacity;
+	private final HashMap<String, Counter> counters;
+	private final AtomicLong requests = new AtomicLong();
+	private long samples = 0;
+
+
+	/**
+	 * @param sampleRate Every how many requests a request is sampled.
+	 * @param capacity The number of ids tracked.
+	 */
+	HotKeys(int sampleRate, int capacity)
+	{
+		this.sampleRate = sampleRate;
+		this.capacity = capacity;
+		this.counters = new HashMap<String, Counter>(capacity * 2);
+	}
+
+	/**
+	 * Records a request of the given source.
+	 * @return Whether the source has just become hot.
+	 */
+	boolean record(String id)
+	{
+		if (requests.incrementAndGet() % sampleRate != 0)
+			return false;
+		return this.sample(id);
+	}
+
+	private synchronized boolean sample(String id)
+	{
+		if (++samples % DECAY_INTERVAL == 0)
+			this.decay();
+
+		Counter counter = counters.get(id);
+		if (counter == null)
+		{
+			if (counters.size() < capacity)
+				counter = new Counter();
+			else
+			{
+				String min = null;
+				for (Map.Entry<String, Counter> e : counters.entrySet())
+					if (min == null || e.getValue().count < counter.count)
+					{
+						min = e.getKey();
+						counter = e.getValue();
+					}
+				counters.remove(min);
+				counter.error = counter.count;
+				counter.hot = false;
+			}
+			counters.put(id, counter);
+		}
+
+		counter.count++;
+		if (counter.hot || counter.count - counter.error < HOT_SAMPLES)
+			return false;
+		counter.hot = true;
+		return true;
+	}
+
+	private void decay()
+	{
+		for (Counter counter : counters.values())
+		{
+			counter.count /= 2;
+			counter.error /= 2;
+			if (counter.count - counter.error < HOT_SAMPLES)
+				counter.hot = false;
+		}
+	}
+
+	/**
+	 * @return The given number of the most requested sources with their estimated number of requests, most requested first.
+	 */
+	synchronized Map<String, Long> top(int n)
+	{
+		final ArrayList<Map.Entry<String, Counter>> entries = new ArrayList<Map.Entry<String, Counter>>(counters.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, Counter>>()
+		{
+
+			@Override
+			public int compare(Map.Entry<String, Counter> o1, Map.Entry<String, Counter> o2)
+			{
+				return Long.compare(o2.getValue().count, o1.getValue().count);
+			}
+		});
+
+		final LinkedHashMap<String, Long> top = new LinkedHashMap<String, Long>();
+		for (int i = 0; i < Math.min(n, entries.size()); i++)
+			top.put(entries.get(i).getKey(), Long.valueOf(entries.get(i).getValue().count * sampleRate));
+		return top;
+	}
+
+
+	private static class Counter
+	{
+
+		private long count = 0;
+		private long error = 0;
+		private boolean hot = false;
+
+	}
+
+}
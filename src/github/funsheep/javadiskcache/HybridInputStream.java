@@ -21,14 +21,25 @@ import java.nio.channels.SeekableByteChannel;
 class HybridInputStream extends FilterInputStream
 {
 	private final SeekableByteChannel chan;
-	private ByteBuffer buffer = ByteBuffer.allocate(8192);
+	private final BufferPool buffers;
+	private ByteBuffer buffer;
 	private long position = 0;
 	private boolean EOF = false;
 
 	HybridInputStream(InputStream in, SeekableByteChannel chan)
+	{
+		this(in, chan, BufferPool.DIRECT);
+	}
+
+	/**
+	 * @param buffers The pool of direct buffers the channel is read with.
+	 */
+	HybridInputStream(InputStream in, SeekableByteChannel chan, BufferPool buffers)
 	{
 		super(in);
 		this.chan = chan;
+		this.buffers = buffers;
+		this.buffer = buffers.acquire();
 		this.buffer.limit(0);
 	}
 
@@ -73,8 +84,31 @@ class HybridInputStream extends FilterInputStream
 	}
 
 	@Override
-	public int read(byte b[], int off, int len) throws IOException
+	public synchronized int read(byte b[], int off, int len) throws IOException
 	{
+		if (!EOF && !buffer.hasRemaining() && len >= buffer.capacity()) // large read, bypass the buffer
+		{
+			int total = 0;
+			try
+			{
+				while (total < len)
+				{
+					final int read = chan.read(ByteBuffer.wrap(b, off + total, len - total));
+					if (read < 0)
+						break;
+					position += read;
+					total += read;
+				}
+			} catch (IOException e)
+			{
+				closeFile();
+			}
+
+			if (total > 0)
+				return total;
+			closeFile();
+		}
+
 		if (!EOF)
 		{
 			if (!buffer.hasRemaining())
@@ -93,6 +127,7 @@ class HybridInputStream extends FilterInputStream
 				} catch (IOException e)
 				{
 					closeFile();
+					return super.read(b, off, len);
 				}
 				buffer.flip();
 			}
@@ -110,23 +145,29 @@ class HybridInputStream extends FilterInputStream
 		return super.read(b, off, len);
 	}
 
+	/**
+	 * Synchronized with the reads, the buffer goes back to the pool only when no read uses it.
+	 */
 	@Override
-	public void close() throws IOException
+	public synchronized void close() throws IOException
 	{
 		super.close();
 		EOF = true;
 		Tools.close(chan);
+		buffers.release(buffer);
 		buffer = null;
 	}
 
 	@Override
-	public int available() throws IOException
+	public synchronized int available() throws IOException
 	{
+		if (buffer == null)
+			return in.available();
 		return buffer.remaining() + in.available();
 	}
 
 	@Override
-	public long skip(long n) throws IOException
+	public synchronized long skip(long n) throws IOException
 	{
 		if (!EOF)
 		{
@@ -173,6 +214,7 @@ class HybridInputStream extends FilterInputStream
 
 		EOF = true;
 		Tools.close(chan);
+		buffers.release(buffer);
 		buffer = null;
 
 		return super.skip(position);
@@ -0,0 +1,39 @@
+/*
+	This file is part of the java diskcache library.
+	Copyright (C) 2005-2013 funsheep, cgrote
+
+	This library is subject to the terms of the Mozilla Public License, v. 2.0.
+	You should have received a copy of the MPL along with this library; see the
+	file LICENSE. If not, you can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package github.funsheep.javadiskcache;
+
+import java.util.List;
+
+/**
+ * Listener for the changes of the entries of a {@link FileCache}.
+ * Events are delivered asynchronously by a background thread, changes that happen at about the same time are delivered
+ * together.
+ * <p>
+ * Not every change is reported:
+ * <ul>
+ * <li>Entries of an unknown size are stored outside the watched cache directory. They are reported when this cache completes
+ * or removes them, changes made by other processes are not reported.</li>
+ * <li>Evicting the tail chunks of a chunked entry frees space but keeps the entry. It is not reported, the entry is
+ * reported as evicted only when it is removed completely.</li>
+ * </ul>
+ *
+ * @see FileCache#addCacheListener(ICacheListener)
+ * @author funsheep
+ */
+public interface ICacheListener
+{
+
+	/**
+	 * Called with the changes since the last call, in the order they have been noticed.
+	 * Should return quickly, the events of all listeners are delivered by the same thread.
+	 * @param events The changes, never empty.
+	 */
+	public void changed(List<CacheEvent> events);
+
+}
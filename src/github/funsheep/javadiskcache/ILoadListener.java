@@ -0,0 +1,55 @@
+/*
+	This file is part of the java diskcache library.
+	Copyright (C) 2005-2013 funsheep, cgrote
+
+	This library is subject to the terms of the Mozilla Public License, v. 2.0.
+	You should have received a copy of the MPL along with this library; see the
+	file LICENSE. If not, you can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package github.funsheep.javadiskcache;
+
+/**
+ * Listener that is notified by the {@link CacheStreamLoader} and the {@link ChunkedLoader} about the content written to the
+ * cache file, and by the {@link CacheStreamLoader} when the source has been read completely and all of its content has been
+ * written.
+ *
+ * @author funsheep
+ */
+interface ILoadListener
+{
+
+	/**
+	 * Called after the content has been written to the cache file completely.
+	 * Must not lock the cache, the loader is still locked.
+	 * @param length The length of the content.
+	 * @param digest The SHA-256 digest of the content or <code>null</code> if the loader did not see the whole content (e.g. resumed)
+	 *            or did not checksum the content.
+	 */
+	public void loaded(long length, byte[] digest);
+
+	/**
+	 * Called when content has been written to the cache file, for the accounting of the occupied space of entries
+	 * that did not reserve it. Must not lock the cache.
+	 * @param bytes The number of bytes written.
+	 */
+	public void written(long bytes);
+
+	/**
+	 * Called by the {@link ChunkedLoader} before a chunk is loaded, reserves its space in the cache. No loader is locked.
+	 * @param bytes The length of the chunk.
+	 */
+	public void reserve(long bytes);
+
+	/**
+	 * Called by the {@link ChunkedLoader} if a reserved chunk could not be loaded or a present chunk is corrupt.
+	 * Must not lock the cache.
+	 * @param bytes The length of the chunk.
+	 */
+	public void release(long bytes);
+
+	/**
+	 * Called by the {@link ChunkedLoader} once, after the last missing chunk has been written. Must not lock the cache.
+	 */
+	public void complete();
+
+}
@@ -0,0 +1,48 @@
+/*
+	This file is part of the java diskcache library.
+	Copyright (C) 2005-2013 funsheep, cgrote
+
+	This library is subject to the terms of the Mozilla Public License, v. 2.0.
+	You should have received a copy of the MPL along with this library; see the
+	file LICENSE. If not, you can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package github.funsheep.javadiskcache;
+
+import java.io.InputStream;
+
+/**
+ * Memory tier in front of the cache directory. Keeps the content of small entries in memory, one version per source id.
+ * The memory is bounded, entries are evicted independently of the cache directory.
+ *
+ * @author funsheep
+ */
+interface IMemoryTier
+{
+
+	/**
+	 * @return A stream on the content of the given version of the source or <code>null</code> if it is not kept in memory.
+	 */
+	public InputStream get(String id, long size, long lastModified);
+
+	/**
+	 * Keeps the given content of a version of the source. Replaces other versions of the source.
+	 * @param content The complete content, must not be changed afterwards.
+	 */
+	public void put(String id, long size, long lastModified, byte[] content);
+
+	/**
+	 * Removes all versions of the source.
+	 */
+	public void remove(String id);
+
+	/**
+	 * @return The size of the largest entry that is kept in memory.
+	 */
+	public int maxEntrySize();
+
+	/**
+	 * @return The number of bytes kept in memory.
+	 */
+	public long used();
+
+}
@@ -0,0 +1,32 @@
+/*
+	This file is part of the java diskcache library.
+	Copyright (C) 2005-2013 funsheep, cgrote
+
+	This library is subject to the terms of the Mozilla Public License, v. 2.0.
+	You should have received a copy of the MPL along with this library; see the
+	file LICENSE. If not, you can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package github.funsheep.javadiskcache;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Extension of the {@link ICacheable} interface for sources that are able to deliver an arbitrary byte range of their content,
+ * e.g. by using HTTP range requests. The {@link FileCache} uses this to fill large entries chunk-wise and in parallel.
+ * @author funsheep
+ */
+public interface IRangeCacheable extends ICacheable
+{
+
+	/**
+	 * Requests a part of the actual content for caching.
+	 * The returned stream has to start exactly at the given offset. Implementations that can not request the range from the source
+	 * have to skip the leading bytes themselves. The stream may provide more than <code>length</code> bytes, callers only read what they need.
+	 * @param offset The position of the first requested byte.
+	 * @param length The number of requested bytes or {@link #UNKNOWN} to request everything up to the end of the content.
+	 * @return An {@link InputStream} that provides access to the requested part of the content.
+	 */
+	public InputStream requestContent(long offset, long length) throws IOException;
+
+}
@@ -0,0 +1,136 @@
+/*
+	This file is part of the java diskcache library.
+	Copyright (C) 2005-2013 funsheep, cgrote
+
+	This library is subject to the terms of the Mozilla Public License, v. 2.0.
+	You should have received a copy of the MPL along with this library; see the
+	file LICENSE. If not, you can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package github.funsheep.javadiskcache;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Copies the content of a complete entry while it is read and puts it into the memory tier once it has been read
+ * completely. The entry is filled by the reading thread, not while the cache is locked. Skipping or reading only a part
+ * of the entry does not keep it.
+ *
+ * @author funsheep
+ */
+class MemorizingInputStream extends FilterInputStream
+{
+
+	private final IMemoryTier memory;
+	private final String id;
+	private final long lastModified;
+	private byte[] content;
+	private int length = 0;
+
+
+	/**
+	 * @param size The size of the entry, at most the maximum entry size of the memory tier.
+	 */
+	MemorizingInputStream(InputStream in, IMemoryTier memory, String id, long size, long lastModified)
+	{
+		super(in);
+		this.memory = memory;
+		this.id = id;
+		this.lastModified = lastModified;
+		this.content = new byte[(int)size];
+	}
+
+	private void copied(byte[] b, int off, int read)
+	{
+		if (content == null)
+			return;
+		if (read < 0 || length + read > content.length)
+		{
+			content = null; // end of content or more content than expected
+			return;
+		}
+		System.arraycopy(b, off, content, length, read);
+		length += read;
+		if (length == content.length)
+		{
+			memory.put(id, content.length, lastModified, content);
+			content = null;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized int read() throws IOException
+	{
+		final int read = in.read();
+		if (read >= 0)
+			this.copied(new byte[] { (byte)read }, 0, 1);
+		else
+			this.copied(null, 0, -1);
+		return read;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized int read(byte b[], int off, int len) throws IOException
+	{
+		final int read = in.read(b, off, len);
+		this.copied(b, off, read);
+		return read;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized long skip(long n) throws IOException
+	{
+		final long skipped = in.skip(n);
+		if (skipped > 0)
+			content = null;
+		return skipped;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean markSupported()
+	{
+		return false;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void mark(int readlimit)
+	{
+		// not supported
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void reset() throws IOException
+	{
+		throw new IOException("mark/reset not supported");
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		content = null;
+		super.close();
+	}
+
+}
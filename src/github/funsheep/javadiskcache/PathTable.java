@@ -0,0 +1,273 @@
+/*
+	This file is part of the java diskcache library.
+	Copyright (C) 2005-2013 funsheep, cgrote
+
+	This library is subject to the terms of the Mozilla Public License, v. 2.0.
+	You should have received a copy of the MPL along with this library; see the
+	file LICENSE. If not, you can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package github.funsheep.javadiskcache;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Compact table of file names with a long value each. The names are stored as UTF-8 in a single byte array, the entries
+ * in an open-addressed hash index of primitive arrays. A table with a million entries therefore consists of a few arrays
+ * instead of millions of objects. Not thread-safe.
+ *
+ * @author funsheep
+ */
+class PathTable
+{
+
+	/** Returned if a name is not in the table. */
+	static final long NOT_FOUND = Long.MIN_VALUE;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int INITIAL_CAPACITY = 256;
+
+	// index, a hash of 0 marks an empty position
+	private long[] hashes = new long[INITIAL_CAPACITY];
+	private int[] offsets = new int[INITIAL_CAPACITY];
+	private int[] lengths = new int[INITIAL_CAPACITY];
+	private long[] values = new long[INITIAL_CAPACITY];
+	private int count = 0;
+
+	// names
+	private byte[] names = new byte[INITIAL_CAPACITY * 32];
+	private int namesEnd = 0;
+	private int garbage = 0;
+
+
+	/**
+	 * Visits the entries of a table.
+	 */
+	interface IVisitor
+	{
+
+		/**
+		 * @return <code>false</code> to stop visiting.
+		 */
+		public boolean visit(String name, long value);
+
+	}
+
+	/**
+	 * Sets the value of a name.
+	 * @return The previous value or {@link #NOT_FOUND}.
+	 */
+	long put(String name, long value)
+	{
+		final byte[] bytes = name.getBytes(UTF8);
+		final long hash = hash(bytes);
+		final int i = this.find(hash, bytes);
+		if (i >= 0)
+		{
+			final long previous = values[i];
+			values[i] = value;
+			return previous;
+		}
+
+		if ((count + 1) * 2 > hashes.length)
+			this.rehash(hashes.length * 2);
+		this.insert(hash, this.store(bytes), bytes.length, value);
+		return NOT_FOUND;
+	}
+
+	/**
+	 * @return The value of the given name or {@link #NOT_FOUND}.
+	 */
+	long get(String name)
+	{
+		final byte[] bytes = name.getBytes(UTF8);
+		final int i = this.find(hash(bytes), bytes);
+		return i >= 0 ? values[i] : NOT_FOUND;
+	}
+
+	/**
+	 * @return The value of the removed name or {@link #NOT_FOUND}.
+	 */
+	long remove(String name)
+	{
+		final byte[] bytes = name.getBytes(UTF8);
+		final int i = this.find(hash(bytes), bytes);
+		if (i < 0)
+			return NOT_FOUND;
+
+		final long value = values[i];
+		garbage += lengths[i];
+		this.removeAt(i);
+		if (garbage > namesEnd / 2 && garbage > INITIAL_CAPACITY * 32)
+			this.rehash(hashes.length);
+		return value;
+	}
+
+	/**
+	 * Removes all names not in the given set.
+	 * @return The sum of the values of the removed names.
+	 */
+	long retainAll(Set<String> keep)
+	{
+		long removed = 0;
+		final long[] oldHashes = hashes;
+		for (int i = 0; i < oldHashes.length; i++)
+			if (oldHashes[i] != 0 && !keep.contains(this.name(i)))
+			{
+				removed += values[i];
+				hashes[i] = 0; // dropped by the rehash
+				count--;
+			}
+		this.rehash(hashes.length);
+		return removed;
+	}
+
+	void clear()
+	{
+		hashes = new long[INITIAL_CAPACITY];
+		offsets = new int[INITIAL_CAPACITY];
+		lengths = new int[INITIAL_CAPACITY];
+		values = new long[INITIAL_CAPACITY];
+		names = new byte[INITIAL_CAPACITY * 32];
+		count = 0;
+		namesEnd = 0;
+		garbage = 0;
+	}
+
+	int size()
+	{
+		return count;
+	}
+
+	/**
+	 * Visits all entries in no particular order. The table must not be changed while it is visited.
+	 */
+	void visit(IVisitor visitor)
+	{
+		for (int i = 0; i < hashes.length; i++)
+			if (hashes[i] != 0 && !visitor.visit(this.name(i), values[i]))
+				return;
+	}
+
+	private String name(int i)
+	{
+		return new String(names, offsets[i], lengths[i], UTF8);
+	}
+
+	private int find(long hash, byte[] bytes)
+	{
+		final int mask = hashes.length - 1;
+		for (int i = home(hash, mask); hashes[i] != 0; i = (i + 1) & mask)
+			if (hashes[i] == hash && this.equals(i, bytes))
+				return i;
+		return -1;
+	}
+
+	private boolean equals(int i, byte[] bytes)
+	{
+		if (lengths[i] != bytes.length)
+			return false;
+		final int offset = offsets[i];
+		for (int b = 0; b < bytes.length; b++)
+			if (names[offset + b] != bytes[b])
+				return false;
+		return true;
+	}
+
+	private int store(byte[] bytes)
+	{
+		if (namesEnd + bytes.length > names.length)
+			names = Arrays.copyOf(names, Math.max(names.length * 2, namesEnd + bytes.length));
+		final int offset = namesEnd;
+		System.arraycopy(bytes, 0, names, offset, bytes.length);
+		namesEnd += bytes.length;
+		return offset;
+	}
+
+	private void insert(long hash, int offset, int length, long value)
+	{
+		final int mask = hashes.length - 1;
+		int i = home(hash, mask);
+		while (hashes[i] != 0)
+			i = (i + 1) & mask;
+		hashes[i] = hash;
+		offsets[i] = offset;
+		lengths[i] = length;
+		values[i] = value;
+		count++;
+	}
+
+	/**
+	 * Removes the given position of the index. The following entries of the probe sequence are shifted back, the index
+	 * therefore needs no tombstones.
+	 */
+	private void removeAt(int i)
+	{
+		final int mask = hashes.length - 1;
+		hashes[i] = 0;
+		count--;
+		for (int j = (i + 1) & mask; hashes[j] != 0; j = (j + 1) & mask)
+		{
+			final int home = home(hashes[j], mask);
+			// move the entry if its home is not cyclically within (i, j]
+			if (i <= j ? home <= i || home > j : home <= i && home > j)
+			{
+				hashes[i] = hashes[j];
+				offsets[i] = offsets[j];
+				lengths[i] = lengths[j];
+				values[i] = values[j];
+				hashes[j] = 0;
+				i = j;
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds the index with the given capacity and compacts the names.
+	 */
+	private void rehash(int capacity)
+	{
+		final long[] oldHashes = hashes;
+		final int[] oldOffsets = offsets;
+		final int[] oldLengths = lengths;
+		final long[] oldValues = values;
+		final byte[] oldNames = names;
+		hashes = new long[capacity];
+		offsets = new int[capacity];
+		lengths = new int[capacity];
+		values = new long[capacity];
+		names = new byte[Math.max(INITIAL_CAPACITY * 32, (namesEnd - garbage) * 2)];
+		count = 0;
+		namesEnd = 0;
+		garbage = 0;
+		for (int i = 0; i < oldHashes.length; i++)
+			if (oldHashes[i] != 0)
+			{
+				final int offset = namesEnd;
+				System.arraycopy(oldNames, oldOffsets[i], names, offset, oldLengths[i]);
+				namesEnd += oldLengths[i];
+				this.insert(oldHashes[i], offset, oldLengths[i], oldValues[i]);
+			}
+	}
+
+	private static int home(long hash, int mask)
+	{
+		return (int)(hash ^ (hash >>> 32)) & mask;
+	}
+
+	/**
+	 * @return The 64-bit FNV-1a hash of the given bytes, never <code>0</code>.
+	 */
+	private static long hash(byte[] bytes)
+	{
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : bytes)
+		{
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash != 0 ? hash : 1;
+	}
+
+}
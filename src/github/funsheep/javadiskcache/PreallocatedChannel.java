@@ -0,0 +1,373 @@
+/*
+	This file is part of the java diskcache library.
+	Copyright (C) 2005-2013 funsheep, cgrote
+
+	This library is subject to the terms of the Mozilla Public License, v. 2.0.
+	You should have received a copy of the MPL along with this library; see the
+	file LICENSE. If not, you can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package github.funsheep.javadiskcache;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Byte channel on a cache file that has been extended to the size of its entry before it is written.
+ * The number of bytes written so far is tracked in a marker side file, the channel provides only the written content. The
+ * marker is updated every {@link #MARK_INTERVAL} bytes and when the channel is closed. It is removed by the cache after the
+ * complete entry has been published, a file without marker is complete.
+ * <p>
+ * Optionally the content is written with direct I/O, bypassing the page cache. Only writes aligned to the block size of the
+ * file system are written directly, all others (usually the last one) through the page cache.
+ *
+ * @author funsheep
+ */
+class PreallocatedChannel implements SeekableByteChannel
+{
+
+	private static final Logger LOGGER = Logger.getLogger();
+
+	/** Interval in which the marker is updated. */
+	static final int MARK_INTERVAL = 1024 * 1024;
+	/** Minimum size of a preallocated cache file. */
+	static final long MIN_SIZE = 1024 * 1024;
+
+	private final FileChannel data;
+	private final Path markerFile;
+	private final FileChannel marker;
+	private final long capacity;
+
+	private FileChannel direct = null;
+	private int alignment;
+	private ByteBuffer staging = null;
+	private long length;
+	private long marked;
+	private long position = 0;
+	private boolean closed = false;
+
+
+	private PreallocatedChannel(FileChannel data, Path markerFile, FileChannel marker, long capacity, long length)
+	{
+		this.data = data;
+		this.markerFile = markerFile;
+		this.marker = marker;
+		this.capacity = capacity;
+		this.length = length;
+		this.marked = length;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized int read(ByteBuffer dst) throws IOException
+	{
+		final int read = this.read(dst, position);
+		if (read > 0)
+			position += read;
+		return read;
+	}
+
+	/**
+	 * Reads from the given position without changing the position of this channel.
+	 */
+	synchronized int read(ByteBuffer dst, long pos) throws IOException
+	{
+		ensureOpen();
+		if (pos >= length)
+			this.refresh();
+		if (pos >= length)
+			return -1;
+
+		final int toRead = (int)Math.min(dst.remaining(), length - pos);
+		if (toRead == dst.remaining())
+			return data.read(dst, pos);
+
+		final ByteBuffer part = dst.duplicate();
+		part.limit(part.position() + toRead);
+		final int read = data.read(part, pos);
+		if (read > 0)
+			dst.position(dst.position() + read);
+		return read;
+	}
+
+	private void refresh() throws IOException
+	{
+		if (marker == null) // written by another channel?
+			length = Math.max(length, Files.exists(markerFile) ? readMarker(markerFile) : capacity);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized int write(ByteBuffer src) throws IOException
+	{
+		final int written = this.write(src, position);
+		position += written;
+		return written;
+	}
+
+	/**
+	 * Writes at the given position without changing the position of this channel. Content has to be written sequentially.
+	 */
+	synchronized int write(ByteBuffer src, long pos) throws IOException
+	{
+		ensureOpen();
+		if (marker == null)
+			throw new NonWritableChannelException();
+		if (pos > length)
+			throw new IOException("Preallocated cache files have to be written sequentially");
+		if (pos + src.remaining() > capacity)
+			throw new IOException("Content exceeds the size of the cache file");
+
+		final int written = direct != null && pos % alignment == 0 && src.remaining() % alignment == 0 ? this.writeDirect(src, pos)
+			: data.write(src, pos);
+		length = Math.max(length, pos + written);
+		if (length - marked >= MARK_INTERVAL)
+			this.mark();
+		return written;
+	}
+
+	private int writeDirect(ByteBuffer src, long pos) throws IOException
+	{
+		final int written = src.remaining();
+		if (staging == null || staging.capacity() < written)
+		{
+			staging = DirectIO.allocate(written, alignment);
+			if (staging == null)
+			{
+				this.disableDirect();
+				return data.write(src, pos);
+			}
+		}
+
+		staging.clear();
+		staging.put(src).flip();
+		try
+		{
+			while (staging.hasRemaining())
+				direct.write(staging, pos + staging.position());
+		}
+		catch (IOException e)
+		{
+			LOGGER.warn("Direct I/O failed, continue through the page cache", e);
+			this.disableDirect();
+			while (staging.hasRemaining())
+				data.write(staging, pos + staging.position());
+		}
+		return written;
+	}
+
+	/**
+	 * Writes the content with direct I/O, if supported.
+	 * @return Whether direct I/O is used.
+	 */
+	synchronized boolean useDirectIO(Path file)
+	{
+		if (marker == null || direct != null)
+			return direct != null;
+		direct = DirectIO.open(file);
+		alignment = DirectIO.blockSize(file);
+		return direct != null;
+	}
+
+	private void disableDirect()
+	{
+		Tools.close(direct);
+		direct = null;
+		staging = null;
+	}
+
+	private void mark() throws IOException
+	{
+		final ByteBuffer value = ByteBuffer.allocate(8);
+		value.putLong(length).flip();
+		while (value.hasRemaining())
+			marker.write(value, value.position());
+		marked = length;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized long position() throws IOException
+	{
+		ensureOpen();
+		return position;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized SeekableByteChannel position(long newPosition) throws IOException
+	{
+		ensureOpen();
+		if (newPosition < 0)
+			throw new IllegalArgumentException();
+		position = newPosition;
+		return this;
+	}
+
+	/**
+	 * @return The number of bytes written so far.
+	 */
+	@Override
+	public synchronized long size() throws IOException
+	{
+		ensureOpen();
+		this.refresh();
+		return length;
+	}
+
+	/**
+	 * Discards the written content beyond the given size. The cache file keeps its size.
+	 */
+	@Override
+	public synchronized SeekableByteChannel truncate(long size) throws IOException
+	{
+		ensureOpen();
+		if (marker == null)
+			throw new NonWritableChannelException();
+		if (size < length)
+		{
+			length = size;
+			this.mark();
+		}
+		if (position > size)
+			position = size;
+		return this;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized boolean isOpen()
+	{
+		return !closed;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (closed)
+			return;
+
+		closed = true;
+		try
+		{
+			if (marker != null && length != marked)
+				this.mark();
+		}
+		finally
+		{
+			Tools.close(marker);
+			Tools.close(direct);
+			Tools.close(data);
+		}
+	}
+
+	private void ensureOpen() throws IOException
+	{
+		if (closed)
+			throw new ClosedChannelException();
+	}
+
+
+	private static long readMarker(FileChannel marker) throws IOException
+	{
+		final ByteBuffer value = ByteBuffer.allocate(8);
+		while (value.hasRemaining())
+			if (marker.read(value, value.position()) < 0)
+				return 0;
+		value.flip();
+		return value.getLong();
+	}
+
+	private static long readMarker(Path markerFile)
+	{
+		FileChannel marker = null;
+		try
+		{
+			marker = FileChannel.open(markerFile, StandardOpenOption.READ);
+			return readMarker(marker);
+		}
+		catch (IOException e)
+		{
+			return 0;
+		}
+		finally
+		{
+			Tools.close(marker);
+		}
+	}
+
+	/**
+	 * Opens a preallocated cache file.
+	 * @param file The cache file.
+	 * @param markerFile The side file with the number of written bytes.
+	 * @param writable Whether content should be appended.
+	 */
+	static PreallocatedChannel open(Path file, Path markerFile, boolean writable) throws IOException
+	{
+		final FileChannel data = writable ? FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE) : FileChannel.open(file,
+			StandardOpenOption.READ);
+		FileChannel marker = null;
+		try
+		{
+			if (writable)
+				marker = FileChannel.open(markerFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			final long length = writable ? readMarker(marker) : readMarker(markerFile);
+			return new PreallocatedChannel(data, markerFile, marker, data.size(), length);
+		}
+		catch (IOException e)
+		{
+			Tools.close(data);
+			Tools.close(marker);
+			throw e;
+		}
+	}
+
+	/**
+	 * Extends an empty cache file to the given size and marks it as preallocated. The JDK offers no way to allocate the blocks
+	 * of a file, the file system allocates them when they are written. The size of the file however does not change with
+	 * every write.
+	 */
+	static void create(Path file, Path markerFile, long size) throws IOException
+	{
+		Files.createDirectories(markerFile.getParent());
+		Files.write(markerFile, new byte[8]);
+		final RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw");
+		try
+		{
+			raf.setLength(size);
+		}
+		finally
+		{
+			Tools.close(raf);
+		}
+	}
+
+	/**
+	 * @return The number of bytes written to the preallocated cache file with the given marker.
+	 */
+	static long length(Path markerFile)
+	{
+		return readMarker(markerFile);
+	}
+
+}
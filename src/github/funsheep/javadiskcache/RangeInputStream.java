@@ -0,0 +1,107 @@
+/*
+	This file is part of the java diskcache library.
+	Copyright (C) 2005-2013 funsheep, cgrote
+
+	This library is subject to the terms of the Mozilla Public License, v. 2.0.
+	You should have received a copy of the MPL along with this library; see the
+	file LICENSE. If not, you can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package github.funsheep.javadiskcache;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Inputstream on the content of an {@link IRangeCacheable} that requests the content not until the first read.
+ * Skipping before the first read only moves the start position, the content is then requested from that position on.
+ * Resuming a partially cached entry therefore requests only the missing part from the source instead of downloading and
+ * discarding the cached part.
+ *
+ * @author funsheep
+ */
+class RangeInputStream extends InputStream
+{
+
+	private final IRangeCacheable source;
+	private InputStream in = null;
+	private long offset = 0;
+	private boolean closed = false;
+
+
+	RangeInputStream(IRangeCacheable source)
+	{
+		this.source = source;
+	}
+
+	private InputStream in() throws IOException
+	{
+		if (closed)
+			throw new IOException("Stream closed");
+
+		if (in == null)
+		{
+			in = offset == 0 ? source.requestContent() : source.requestContent(offset, ICacheable.UNKNOWN);
+			if (in == null)
+				throw new IOException("No content available for " + source.uID());
+		}
+		return in;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int read() throws IOException
+	{
+		return this.in().read();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int read(byte b[], int off, int len) throws IOException
+	{
+		return this.in().read(b, off, len);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long skip(long n) throws IOException
+	{
+		if (in != null || closed)
+			return this.in().skip(n);
+		if (n <= 0)
+			return 0;
+
+		final long size = source.size();
+		final long skip = size == ICacheable.UNKNOWN ? n : Math.max(0, Math.min(n, size - offset));
+		offset += skip;
+		return skip;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int available() throws IOException
+	{
+		if (in == null)
+			return 0;
+		return in.available();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		closed = true;
+		if (in != null)
+			in.close();
+	}
+
+}
@@ -0,0 +1,394 @@
+/*
+	This file is part of the java diskcache library.
+	Copyright (C) 2005-2013 funsheep, cgrote
+
+	This library is subject to the terms of the Mozilla Public License, v. 2.0.
+	You should have received a copy of the MPL along with this library; see the
+	file LICENSE. If not, you can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package github.funsheep.javadiskcache;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Memory tier that keeps the content off the heap, in slabs of direct buffers. Each slab is divided into slots of one size
+ * class, the size classes are powers of two. A slot holds the id and the content of an entry. The entries are found through
+ * an open-addressed hash index of primitive arrays, an entry therefore needs no Java objects and is not scanned by the garbage
+ * collector.
+ * <p>
+ * Slabs are allocated on demand until the capacity is reached. Then entries of the same size class are evicted with the clock
+ * algorithm. A size class without slabs takes over the last slab of the size class with the most slabs. The capacity has to
+ * be at least one slab. The slabs are never freed explicitly, they are released by the garbage collector with the tier.
+ *
+ * @author funsheep
+ */
+class SlabMemoryTier implements IMemoryTier
+{
+
+	/** Size of a slab, also the size of the largest slot. */
+	static final int SLAB_SIZE = 1024 * 1024;
+	/** Size of the smallest slot. */
+	static final int MIN_SLOT = 64;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int INITIAL_INDEX = 1024;
+
+	private final long capacity;
+	private final int maxEntrySize;
+	private final SizeClass[] classes;
+	private long allocated = 0;
+	private long used = 0;
+
+	// index, a hash of 0 marks an empty position
+	private long[] hashes = new long[INITIAL_INDEX];
+	private long[] addresses = new long[INITIAL_INDEX];
+	private long[] sizes = new long[INITIAL_INDEX];
+	private long[] modified = new long[INITIAL_INDEX];
+	private int[] lengths = new int[INITIAL_INDEX];
+	private int count = 0;
+
+
+	/**
+	 * @param capacity The maximum number of bytes of all slabs.
+	 * @param maxEntrySize The size of the largest entry kept in memory.
+	 */
+	SlabMemoryTier(long capacity, int maxEntrySize)
+	{
+		if (capacity < SLAB_SIZE)
+			throw new IllegalArgumentException("Capacity has to be at least one slab of " + SLAB_SIZE + " bytes.");
+		this.capacity = capacity;
+		this.maxEntrySize = (int)Math.min(Math.min(maxEntrySize, capacity), SLAB_SIZE);
+		this.classes = new SizeClass[Integer.numberOfTrailingZeros(SLAB_SIZE / MIN_SLOT) + 1];
+		for (int c = 0; c < classes.length; c++)
+			classes[c] = new SizeClass(MIN_SLOT << c);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized InputStream get(String id, long size, long lastModified)
+	{
+		final int i = this.find(hash(id));
+		if (i < 0 || sizes[i] != size || modified[i] != lastModified)
+			return null;
+
+		final SizeClass sc = classes[(int)(addresses[i] >>> 32)];
+		final int slot = (int)addresses[i];
+		final ByteBuffer buf = sc.slot(slot);
+		final byte[] idBytes = id.getBytes(UTF8);
+		if (buf.getInt() != idBytes.length)
+			return null; // other id with the same hash
+		final byte[] storedId = new byte[idBytes.length];
+		buf.get(storedId);
+		if (!Arrays.equals(idBytes, storedId))
+			return null;
+
+		final byte[] content = new byte[lengths[i]];
+		buf.get(content);
+		sc.referenced[slot] = true;
+		return new ByteArrayInputStream(content);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void put(String id, long size, long lastModified, byte[] content)
+	{
+		final long hash = hash(id);
+		this.remove(hash);
+		final byte[] idBytes = id.getBytes(UTF8);
+		final int needed = 4 + idBytes.length + content.length;
+		if (content.length > maxEntrySize || needed > SLAB_SIZE)
+			return;
+
+		final int c = Math.max(0, 32 - Integer.numberOfLeadingZeros(needed - 1) - Integer.numberOfTrailingZeros(MIN_SLOT));
+		final int slot = this.allocate(c);
+		if (slot < 0)
+			return;
+
+		final SizeClass sc = classes[c];
+		final ByteBuffer buf = sc.slot(slot);
+		buf.putInt(idBytes.length);
+		buf.put(idBytes);
+		buf.put(content);
+		sc.hashes[slot] = hash;
+		sc.referenced[slot] = false;
+		this.insert(hash, (long)c << 32 | slot, size, lastModified, content.length);
+		used += content.length;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void remove(String id)
+	{
+		this.remove(hash(id));
+	}
+
+	private void remove(long hash)
+	{
+		final int i = this.find(hash);
+		if (i < 0)
+			return;
+
+		final SizeClass sc = classes[(int)(addresses[i] >>> 32)];
+		sc.release((int)addresses[i]);
+		used -= lengths[i];
+		this.removeAt(i);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int maxEntrySize()
+	{
+		return maxEntrySize;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized long used()
+	{
+		return used;
+	}
+
+	/**
+	 * @return A free slot of the given size class or <code>-1</code> if none could be freed.
+	 */
+	private int allocate(int c)
+	{
+		final SizeClass sc = classes[c];
+		if (sc.freeCount > 0)
+			return sc.free[--sc.freeCount];
+
+		if (allocated + SLAB_SIZE <= capacity)
+		{
+			try
+			{
+				sc.addSlab(ByteBuffer.allocateDirect(SLAB_SIZE));
+				allocated += SLAB_SIZE;
+				return sc.free[--sc.freeCount];
+			}
+			catch (OutOfMemoryError e)
+			{
+				// direct memory exhausted, evict instead
+			}
+		}
+
+		if (!sc.slabs.isEmpty())
+			return this.evict(sc);
+
+		SizeClass victim = null;
+		for (SizeClass other : classes)
+			if (victim == null || other.slabs.size() > victim.slabs.size())
+				victim = other;
+		if (victim.slabs.isEmpty())
+			return -1;
+		sc.addSlab(this.removeLastSlab(victim));
+		return sc.free[--sc.freeCount];
+	}
+
+	/**
+	 * Evicts the entry of a slot of the given size class. Slots read since the clock hand passed them last are skipped once.
+	 * @return The freed slot.
+	 */
+	private int evict(SizeClass sc)
+	{
+		final int slots = sc.slabs.size() * sc.slotsPerSlab;
+		while (true)
+		{
+			final int slot = sc.hand;
+			sc.hand = (sc.hand + 1) % slots;
+			if (sc.referenced[slot])
+				sc.referenced[slot] = false;
+			else
+			{
+				this.remove(sc.hashes[slot]);
+				return sc.free[--sc.freeCount];
+			}
+		}
+	}
+
+	/**
+	 * Evicts all entries of the last slab of the given size class and removes the slab.
+	 */
+	private ByteBuffer removeLastSlab(SizeClass sc)
+	{
+		final int end = sc.slabs.size() * sc.slotsPerSlab;
+		final int start = end - sc.slotsPerSlab;
+		for (int slot = start; slot < end; slot++)
+			if (sc.hashes[slot] != 0)
+				this.remove(sc.hashes[slot]);
+
+		int kept = 0;
+		for (int f = 0; f < sc.freeCount; f++)
+			if (sc.free[f] < start)
+				sc.free[kept++] = sc.free[f];
+		sc.freeCount = kept;
+		if (sc.hand >= start)
+			sc.hand = 0;
+		return sc.slabs.remove(sc.slabs.size() - 1);
+	}
+
+	private int find(long hash)
+	{
+		final int mask = hashes.length - 1;
+		for (int i = home(hash, mask); hashes[i] != 0; i = (i + 1) & mask)
+			if (hashes[i] == hash)
+				return i;
+		return -1;
+	}
+
+	private void insert(long hash, long address, long size, long lastModified, int length)
+	{
+		if ((count + 1) * 2 > hashes.length)
+			this.resize();
+
+		final int mask = hashes.length - 1;
+		int i = home(hash, mask);
+		while (hashes[i] != 0)
+			i = (i + 1) & mask;
+		hashes[i] = hash;
+		addresses[i] = address;
+		sizes[i] = size;
+		modified[i] = lastModified;
+		lengths[i] = length;
+		count++;
+	}
+
+	/**
+	 * Removes the given position of the index. The following entries of the probe sequence are shifted back, the index
+	 * therefore needs no tombstones.
+	 */
+	private void removeAt(int i)
+	{
+		final int mask = hashes.length - 1;
+		hashes[i] = 0;
+		count--;
+		for (int j = (i + 1) & mask; hashes[j] != 0; j = (j + 1) & mask)
+		{
+			final int home = home(hashes[j], mask);
+			// move the entry if its home is not cyclically within (i, j]
+			if (i <= j ? home <= i || home > j : home <= i && home > j)
+			{
+				hashes[i] = hashes[j];
+				addresses[i] = addresses[j];
+				sizes[i] = sizes[j];
+				modified[i] = modified[j];
+				lengths[i] = lengths[j];
+				hashes[j] = 0;
+				i = j;
+			}
+		}
+	}
+
+	private void resize()
+	{
+		final long[] oldHashes = hashes;
+		final long[] oldAddresses = addresses;
+		final long[] oldSizes = sizes;
+		final long[] oldModified = modified;
+		final int[] oldLengths = lengths;
+		final int length = oldHashes.length * 2;
+		hashes = new long[length];
+		addresses = new long[length];
+		sizes = new long[length];
+		modified = new long[length];
+		lengths = new int[length];
+		count = 0;
+		for (int i = 0; i < oldHashes.length; i++)
+			if (oldHashes[i] != 0)
+				this.insert(oldHashes[i], oldAddresses[i], oldSizes[i], oldModified[i], oldLengths[i]);
+	}
+
+	private static int home(long hash, int mask)
+	{
+		return (int)(hash ^ (hash >>> 32)) & mask;
+	}
+
+	/**
+	 * @return The 64-bit FNV-1a hash of the given id, never <code>0</code>.
+	 */
+	private static long hash(String id)
+	{
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < id.length(); i++)
+		{
+			hash ^= id.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash != 0 ? hash : 1;
+	}
+
+
+	/**
+	 * The slabs of a size class and the state of their slots.
+	 */
+	private static class SizeClass
+	{
+
+		private final int slotSize;
+		private final int slotsPerSlab;
+		private final ArrayList<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+		private long[] hashes = new long[0];
+		private boolean[] referenced = new boolean[0];
+		private int[] free = new int[0];
+		private int freeCount = 0;
+		private int hand = 0;
+
+
+		SizeClass(int slotSize)
+		{
+			this.slotSize = slotSize;
+			this.slotsPerSlab = SLAB_SIZE / slotSize;
+		}
+
+		void addSlab(ByteBuffer slab)
+		{
+			final int start = slabs.size() * slotsPerSlab;
+			final int slots = start + slotsPerSlab;
+			slabs.add(slab);
+			hashes = Arrays.copyOf(hashes, slots);
+			referenced = Arrays.copyOf(referenced, slots);
+			if (free.length < slots)
+				free = Arrays.copyOf(free, slots);
+			for (int slot = slots - 1; slot >= start; slot--)
+			{
+				hashes[slot] = 0;
+				referenced[slot] = false;
+				free[freeCount++] = slot;
+			}
+		}
+
+		/**
+		 * @return A buffer on the given slot.
+		 */
+		ByteBuffer slot(int slot)
+		{
+			final ByteBuffer buf = slabs.get(slot / slotsPerSlab).duplicate();
+			final int offset = (slot % slotsPerSlab) * slotSize;
+			buf.limit(offset + slotSize).position(offset);
+			return buf;
+		}
+
+		void release(int slot)
+		{
+			hashes[slot] = 0;
+			referenced[slot] = false;
+			free[freeCount++] = slot;
+		}
+
+	}
+
+}
@@ -0,0 +1,211 @@
+/*
+	This file is part of the java diskcache library.
+	Copyright (C) 2005-2013 funsheep, cgrote
+
+	This library is subject to the terms of the Mozilla Public License, v. 2.0.
+	You should have received a copy of the MPL along with this library; see the
+	file LICENSE. If not, you can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package github.funsheep.javadiskcache;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+/**
+ * Forces completed entries to the storage device according to the {@link Durability} of the cache.
+ * All entries completed while a batch is forced are collected and forced together in the next batch by a single background
+ * thread. With {@link Durability#GROUP_COMMIT} a batch is forced at most once per commit interval.
+ *
+ * @author funsheep
+ */
+class SyncBatcher
+{
+
+	private static final Logger LOGGER = Logger.getLogger();
+
+	private final CacheStatistics statistics;
+	private final LinkedHashSet<Path> pending = new LinkedHashSet<Path>();
+	private Durability durability = Durability.NONE;
+	private long interval = 1000;
+	private long round = 0;
+	private long completed = 0;
+	private int waiting = 0;
+	private boolean closed = false;
+	private Thread thread = null;
+
+
+	SyncBatcher(CacheStatistics statistics)
+	{
+		this.statistics = statistics;
+	}
+
+	synchronized void configure(Durability durability, long interval)
+	{
+		this.durability = durability;
+		this.interval = Math.max(1, interval);
+		this.notifyAll();
+	}
+
+	synchronized Durability durability()
+	{
+		return durability;
+	}
+
+	/**
+	 * Forces the given completed entry to the storage device. Blocks until it has been forced if the durability is
+	 * {@link Durability#ON_COMPLETE}.
+	 */
+	void sync(Path file) throws InterruptedIOException
+	{
+		synchronized (this)
+		{
+			if (durability == Durability.NONE || closed)
+				return;
+
+			if (pending.add(file))
+				statistics.pendingSyncs.incrementAndGet();
+			if (thread == null)
+				this.start();
+			this.notifyAll();
+			if (durability != Durability.ON_COMPLETE)
+				return;
+
+			final long target = round + 1;
+			waiting++;
+			try
+			{
+				while (completed < target)
+					this.wait();
+			}
+			catch (InterruptedException e)
+			{
+				throw new InterruptedIOException();
+			}
+			finally
+			{
+				waiting--;
+			}
+		}
+	}
+
+	private void start()
+	{
+		thread = new Thread("diskcache-sync")
+		{
+
+			@Override
+			public void run()
+			{
+				try
+				{
+					while (SyncBatcher.this.syncBatch())
+						continue;
+				}
+				catch (InterruptedException e)
+				{
+					// stop
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Forces the pending entries and stops the thread.
+	 */
+	void close()
+	{
+		final Thread t;
+		synchronized (this)
+		{
+			closed = true;
+			this.notifyAll();
+			t = thread;
+		}
+		if (t == null)
+			return;
+		try
+		{
+			t.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return <code>false</code> if the batcher has been closed.
+	 */
+	private boolean syncBatch() throws InterruptedException
+	{
+		final ArrayList<Path> files;
+		final long batch;
+		synchronized (this)
+		{
+			while (pending.isEmpty() && !closed)
+				this.wait();
+			if (pending.isEmpty())
+				return false;
+			if (waiting == 0 && durability == Durability.GROUP_COMMIT && !closed)
+				this.wait(interval); // collect the entries of the commit interval
+
+			files = new ArrayList<Path>(pending);
+			pending.clear();
+			batch = ++round;
+		}
+
+		final long start = System.nanoTime();
+		for (Path file : files)
+		{
+			try
+			{
+				force(file);
+				statistics.syncedFiles.incrementAndGet();
+			}
+			catch (NoSuchFileException e)
+			{
+				// removed in the meantime
+			}
+			catch (IOException e)
+			{
+				statistics.syncFailures.incrementAndGet();
+				LOGGER.warn("Could not force " + file + " to the storage device", e);
+			}
+			statistics.pendingSyncs.decrementAndGet();
+		}
+		statistics.syncNanos.addAndGet(System.nanoTime() - start);
+		statistics.syncRounds.incrementAndGet();
+
+		synchronized (this)
+		{
+			completed = batch;
+			this.notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * Forces the content of the given file to the storage device.
+	 */
+	static void force(Path file) throws IOException
+	{
+		final FileChannel chan = FileChannel.open(file, StandardOpenOption.WRITE);
+		try
+		{
+			chan.force(false);
+		}
+		finally
+		{
+			Tools.close(chan);
+		}
+	}
+
+}
@@ -11,6 +11,8 @@ package github.funsheep.javadiskcache;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
 import org.apache.commons.codec.binary.Base64;
@@ -125,6 +127,28 @@ class Tools
 	}
 
 
+	/**
+	 * Creates a factory of daemon threads, these do not keep the JVM alive.
+	 * @param name The prefix of the names of the threads.
+	 * @return The factory.
+	 */
+	public static ThreadFactory daemonThreads(final String name)
+	{
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory()
+		{
+
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				final Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+
 	private Tools()
 	{
 		// no instance
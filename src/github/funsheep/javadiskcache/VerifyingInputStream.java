@@ -0,0 +1,319 @@
+/*
+	This file is part of the java diskcache library.
+	Copyright (C) 2005-2013 funsheep, cgrote
+
+	This library is subject to the terms of the Mozilla Public License, v. 2.0.
+	You should have received a copy of the MPL along with this library; see the
+	file LICENSE. If not, you can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package github.funsheep.javadiskcache;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Verifies the content of a complete cache entry while it is read.
+ * The content is read block by block, each block is checked against its CRC before it is handed out. Whole blocks are
+ * read and checked directly in the array of the caller. Skipped blocks are not verified. If the whole content is read, it
+ * is optionally checked against its digest.
+ * On a mismatch the entry is invalidated. If the source of the entry is known, reading continues transparently from the
+ * source, otherwise an {@link IOException} is thrown.
+ *
+ * @author funsheep
+ */
+class VerifyingInputStream extends FilterInputStream
+{
+
+	private final FileCache cache;
+	private final Path file;
+	private final ICacheable source;
+	private final long size;
+	private final int[] crcs;
+	private final byte[] expectedDigest;
+	private final Crc32c crc = new Crc32c();
+	private final byte[] block;
+	private MessageDigest digest;
+
+	private long blockStart = 0;
+	private int blockLength = 0;
+	private int blockPos = 0;
+	private int pendingSkip = 0;
+	private boolean verify = true;
+
+
+	/**
+	 * @param in Stream on the content of the entry.
+	 * @param cache The cache of the entry.
+	 * @param file The cache file of the entry.
+	 * @param source The source of the entry or <code>null</code>.
+	 * @param crcs The block CRCs of the entry.
+	 * @param digest The SHA-256 digest of the entry or <code>null</code> to verify only the blocks.
+	 */
+	VerifyingInputStream(InputStream in, FileCache cache, Path file, ICacheable source, int[] crcs, byte[] digest)
+	{
+		super(in);
+		this.cache = cache;
+		this.file = file;
+		this.source = source;
+		this.size = FileCache.getSize(file);
+		this.crcs = crcs;
+		this.expectedDigest = digest;
+		this.digest = digest != null ? Checksums.newDigest() : null;
+		this.block = new byte[(int)Math.min(Checksums.BLOCK, Math.max(0, size))];
+	}
+
+	private boolean fill() throws IOException
+	{
+		while (blockPos >= blockLength)
+		{
+			final int length = this.nextBlock();
+			if (length < 0)
+				return false;
+
+			this.load(block, 0, length);
+			blockLength = length;
+			blockPos = Math.min(pendingSkip, length);
+			pendingSkip = 0;
+		}
+		return true;
+	}
+
+	/**
+	 * Moves to the block after the current block.
+	 * @return The length of the block or <code>-1</code> at the end of the content.
+	 */
+	private int nextBlock() throws IOException
+	{
+		blockStart += blockLength;
+		blockLength = 0;
+		blockPos = 0;
+		if (blockStart >= size)
+		{
+			this.verifyDigest();
+			return -1;
+		}
+		return (int)Math.min(Checksums.BLOCK, size - blockStart);
+	}
+
+	/**
+	 * Reads the block at the current block start into the given array and verifies it.
+	 */
+	private void load(byte[] b, int off, int length) throws IOException
+	{
+		int read = readFully(in, b, off, length);
+		if (verify && (read < length || !this.verifyBlock(b, off, length)))
+		{
+			this.mismatch();
+			read = readFully(in, b, off, length);
+		}
+		if (read < length)
+			throw new IOException("Unexpected end of content at " + (blockStart + read) + " of " + file);
+
+		if (digest != null)
+			digest.update(b, off, length);
+	}
+
+	private boolean verifyBlock(byte[] b, int off, int length)
+	{
+		final int index = (int)(blockStart / Checksums.BLOCK);
+		if (index >= crcs.length)
+			return true; // no checksum available
+		crc.reset();
+		crc.update(b, off, length);
+		return (int)crc.getValue() == crcs[index];
+	}
+
+	private void verifyDigest() throws IOException
+	{
+		if (digest == null)
+			return;
+		final byte[] actual = digest.digest();
+		digest = null;
+		if (!Arrays.equals(actual, expectedDigest))
+		{
+			cache.invalidate(file);
+			throw new IOException("Digest mismatch in cache file " + file + ". Entry invalidated.");
+		}
+	}
+
+	/**
+	 * Invalidates the entry and continues with the source at the start of the current block.
+	 */
+	private void mismatch() throws IOException
+	{
+		cache.invalidate(file);
+		if (source == null)
+			throw new IOException("Checksum mismatch at block " + blockStart / Checksums.BLOCK + " of cache file " + file
+				+ ". Entry invalidated.");
+
+		Tools.close(in);
+		in = FileCache.requestContent(source);
+		if (in == null)
+			throw new IOException("Checksum mismatch in cache file " + file + " and source " + source.uID() + " not available.");
+		long toSkip = blockStart;
+		while (toSkip > 0)
+		{
+			final long skip = in.skip(toSkip);
+			if (skip <= 0)
+			{
+				if (in.read() < 0)
+					throw new IOException("Could not skip to position " + blockStart + " of " + source.uID());
+				toSkip--;
+			}
+			else
+				toSkip -= skip;
+		}
+		verify = false;
+		digest = null;
+	}
+
+	private static int readFully(InputStream in, byte[] b, int off, int len) throws IOException
+	{
+		int read = 0;
+		while (read < len)
+		{
+			final int r = in.read(b, off + read, len - read);
+			if (r < 0)
+				break;
+			read += r;
+		}
+		return read;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized int read() throws IOException
+	{
+		if (!this.fill())
+			return -1;
+		return block[blockPos++] & 0xff;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int read(byte b[]) throws IOException
+	{
+		return this.read(b, 0, b.length);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized int read(byte b[], int off, int len) throws IOException
+	{
+		if (len == 0)
+			return 0;
+
+		int done = 0;
+		while (done < len)
+		{
+			if (blockPos < blockLength)
+			{
+				final int read = Math.min(len - done, blockLength - blockPos);
+				System.arraycopy(block, blockPos, b, off + done, read);
+				blockPos += read;
+				done += read;
+				continue;
+			}
+
+			final long next = blockStart + blockLength;
+			final int length = (int)Math.min(Checksums.BLOCK, size - next);
+			if (pendingSkip == 0 && length > 0 && len - done >= length)
+			{
+				// the whole block fits, read and verify it in place
+				this.nextBlock();
+				this.load(b, off + done, length);
+				blockLength = length;
+				blockPos = length;
+				done += length;
+			}
+			else if (!this.fill())
+				break;
+		}
+		return done > 0 ? done : -1;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized long skip(long n) throws IOException
+	{
+		if (n <= 0)
+			return 0;
+
+		final long current = blockStart + blockPos;
+		final long target = Math.min(size, current + n);
+		if (target < blockStart + blockLength)
+		{
+			blockPos += (int)(target - current);
+			return target - current;
+		}
+
+		// skip whole blocks without verifying them, the checksums are per block, so the position has to stay aligned
+		digest = null;
+		final long targetBlock = target / Checksums.BLOCK * Checksums.BLOCK;
+		long toSkip = targetBlock - (blockStart + blockLength);
+		while (toSkip > 0)
+		{
+			long skip = in.skip(toSkip);
+			if (skip <= 0)
+				skip = in.read(block, 0, (int)Math.min(block.length, toSkip)); // skip not supported, read and discard
+			if (skip < 0)
+				break; // truncated, reading the block fails the verification
+			toSkip -= skip;
+		}
+		final long skipped = toSkip > 0 ? targetBlock - toSkip : target;
+		blockStart = skipped / Checksums.BLOCK * Checksums.BLOCK;
+		blockLength = 0;
+		blockPos = 0;
+		pendingSkip = (int)(skipped - blockStart);
+		return skipped - current;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized int available() throws IOException
+	{
+		return blockLength - blockPos;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean markSupported()
+	{
+		return false;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void mark(int readlimit)
+	{
+		// not supported
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void reset() throws IOException
+	{
+		throw new IOException("mark/reset not supported");
+	}
+
+}
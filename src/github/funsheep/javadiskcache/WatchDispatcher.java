@@ -0,0 +1,420 @@
+/*
+	This file is part of the java diskcache library.
+	Copyright (C) 2005-2013 funsheep, cgrote
+
+	This library is subject to the terms of the Mozilla Public License, v. 2.0.
+	You should have received a copy of the MPL along with this library; see the
+	file LICENSE. If not, you can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package github.funsheep.javadiskcache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchEvent.Kind;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A single watch service shared by all watched directories. One background thread waits for the watch keys and hands the
+ * events to the subscribers of the directory. Several subscribers may watch the same directory.
+ * <p>
+ * If events of a directory are lost, the subscribers are asked to rescan only that directory. Rescans are collected and
+ * done at most once per {@link #RESCAN_INTERVAL}, a burst of changes therefore does not lead to a burst of scans. Rescans
+ * do not block {@link #lock()}. An exception of a subscriber is logged, the other subscribers still get the event.
+ * <p>
+ * Directories are usually watched by the {@link #shared()} dispatcher. A cache that is closed by its user has its own
+ * dispatcher, which is closed with it.
+ *
+ * @author funsheep
+ */
+class WatchDispatcher
+{
+
+	/**
+	 * Subscriber of the events of watched directories. Called by the thread of the dispatcher.
+	 */
+	interface ISubscriber
+	{
+
+		/**
+		 * Called for each event of a watched directory.
+		 * @param directory The watched directory.
+		 * @param kind The kind of the event.
+		 * @param child The changed file or directory.
+		 */
+		public void changed(Path directory, Kind<?> kind, Path child);
+
+		/**
+		 * Called when events of a watched directory have been lost. The subscriber should scan the directory again.
+		 */
+		public void rescan(Path directory);
+
+	}
+
+	private static final Logger LOGGER = Logger.getLogger();
+
+	/** Minimum interval between two rounds of rescans in milliseconds. */
+	static final long RESCAN_INTERVAL = 500;
+
+	private static WatchDispatcher INSTANCE = null;
+
+	private final ReentrantLock processLock = new ReentrantLock();
+	private final HashMap<WatchKey, Registration> registrations = new HashMap<WatchKey, Registration>();
+	private final LinkedHashSet<WatchKey> overflowed = new LinkedHashSet<WatchKey>();
+	private final WatchService watcher;
+	private long lastRescan = 0;
+
+
+	/**
+	 * Creates a dispatcher with its own watch service and thread. See {@link #close()}.
+	 */
+	WatchDispatcher()
+	{
+		WatchService service = null;
+		try
+		{
+			service = FileSystems.getDefault().newWatchService();
+		}
+		catch (IOException e)
+		{
+			LOGGER.warn("Could not create watch service, directories are not watched", e);
+		}
+		this.watcher = service;
+		if (service == null)
+			return;
+
+		final Thread thread = new Thread("diskcache-watch")
+		{
+
+			@Override
+			public void run()
+			{
+				WatchDispatcher.this.dispatch();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return The dispatcher of the default file system.
+	 */
+	static synchronized WatchDispatcher shared()
+	{
+		if (INSTANCE == null)
+			INSTANCE = new WatchDispatcher();
+		return INSTANCE;
+	}
+
+	/**
+	 * Watches the given directory for the given subscriber.
+	 * @param kinds The kinds of events the subscriber is interested in.
+	 */
+	void register(Path directory, ISubscriber subscriber, Kind<?>... kinds) throws IOException
+	{
+		if (watcher == null)
+			throw new IOException("No watch service");
+
+		synchronized (registrations)
+		{
+			final HashSet<Kind<?>> all = new HashSet<Kind<?>>();
+			for (Kind<?> kind : kinds)
+				all.add(kind);
+			for (Registration registration : registrations.values())
+				if (registration.directory.equals(directory))
+					all.addAll(registration.kinds());
+
+			// registering a directory again returns the same key with the given kinds
+			final WatchKey key = directory.register(watcher, all.toArray(new Kind<?>[all.size()]));
+			Registration registration = registrations.get(key);
+			if (registration == null)
+			{
+				registration = new Registration(directory);
+				registrations.put(key, registration);
+			}
+			registration.subscribers.put(subscriber, kinds);
+		}
+	}
+
+	/**
+	 * @return Whether the given directory is watched for the given subscriber.
+	 */
+	boolean isRegistered(Path directory, ISubscriber subscriber)
+	{
+		synchronized (registrations)
+		{
+			for (Registration registration : registrations.values())
+				if (registration.directory.equals(directory))
+					return registration.subscribers.containsKey(subscriber);
+			return false;
+		}
+	}
+
+	/**
+	 * Stops watching all directories of the given subscriber.
+	 */
+	void cancel(ISubscriber subscriber)
+	{
+		synchronized (registrations)
+		{
+			final Iterator<Map.Entry<WatchKey, Registration>> it = registrations.entrySet().iterator();
+			while (it.hasNext())
+			{
+				final Map.Entry<WatchKey, Registration> entry = it.next();
+				final Registration registration = entry.getValue();
+				if (registration.subscribers.remove(subscriber) != null && registration.subscribers.isEmpty())
+				{
+					entry.getKey().cancel();
+					overflowed.remove(entry.getKey());
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops watching all directories and stops the thread. The shared dispatcher must not be closed.
+	 */
+	void close()
+	{
+		if (watcher == null)
+			return;
+		synchronized (registrations)
+		{
+			registrations.clear();
+			overflowed.clear();
+		}
+		Tools.close(watcher);
+	}
+
+	/**
+	 * Waits until the dispatcher has handed out the events it has taken from the watch service and blocks it until
+	 * {@link #unlock()}. Events the watch service reports later, e.g. of files changed just before, and pending rescans
+	 * are not waited for.
+	 */
+	void lock()
+	{
+		processLock.lock();
+	}
+
+	/**
+	 * Releases the dispatcher blocked by {@link #lock()}.
+	 */
+	void unlock()
+	{
+		processLock.unlock();
+	}
+
+	private void dispatch()
+	{
+		processLock.lock();
+		try
+		{
+			while (true)
+			{
+				final long delay = this.rescanDelay();
+				if (delay == 0)
+				{
+					processLock.unlock(); // a rescan may take long, do not block the lockers meanwhile
+					try
+					{
+						this.rescan();
+					}
+					finally
+					{
+						processLock.lock();
+					}
+				}
+
+				WatchKey key = watcher.poll();
+				if (key == null)
+				{
+					processLock.unlock();
+					try
+					{
+						key = delay < 0 ? watcher.take() : watcher.poll(delay, TimeUnit.MILLISECONDS);
+					}
+					finally
+					{
+						processLock.lock();
+					}
+					if (key == null)
+						continue;
+				}
+				this.dispatch(key);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			// stop
+		}
+		catch (ClosedWatchServiceException e)
+		{
+			// stop
+		}
+		finally
+		{
+			processLock.unlock();
+		}
+	}
+
+	private void dispatch(WatchKey key)
+	{
+		final Path directory;
+		final ArrayList<Map.Entry<ISubscriber, Kind<?>[]>> subscribers;
+		synchronized (registrations)
+		{
+			final Registration registration = registrations.get(key);
+			if (registration == null)
+			{
+				key.pollEvents();
+				key.reset();
+				return; // cancelled in the meantime
+			}
+			directory = registration.directory;
+			subscribers = new ArrayList<Map.Entry<ISubscriber, Kind<?>[]>>(registration.subscribers.entrySet());
+		}
+
+		for (final WatchEvent<?> event : key.pollEvents())
+		{
+			final Kind<?> kind = event.kind();
+			if (kind == StandardWatchEventKinds.OVERFLOW)
+			{
+				synchronized (registrations)
+				{
+					overflowed.add(key);
+				}
+				continue;
+			}
+
+			final Path child = directory.resolve((Path)event.context());
+			for (Map.Entry<ISubscriber, Kind<?>[]> subscriber : subscribers)
+				if (contains(subscriber.getValue(), kind))
+					try
+					{
+						subscriber.getKey().changed(directory, kind, child);
+					}
+					catch (RuntimeException e)
+					{
+						LOGGER.warn("Could not hand " + kind + " of " + child + " to a subscriber", e);
+					}
+		}
+
+		if (!key.reset())
+		{
+			synchronized (registrations)
+			{
+				registrations.remove(key);
+				overflowed.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * @return The time until the next round of rescans in milliseconds, <i>-1</i> if no rescan is pending.
+	 */
+	private long rescanDelay()
+	{
+		synchronized (registrations)
+		{
+			if (overflowed.isEmpty())
+				return -1;
+		}
+		return Math.max(0, lastRescan + RESCAN_INTERVAL - System.currentTimeMillis());
+	}
+
+	private void rescan()
+	{
+		final ArrayList<Registration> pending = new ArrayList<Registration>();
+		synchronized (registrations)
+		{
+			for (WatchKey key : overflowed)
+			{
+				final Registration registration = registrations.get(key);
+				if (registration != null)
+					pending.add(registration.copy());
+			}
+			overflowed.clear();
+		}
+
+		LOGGER.info("Rescan " + pending.size() + " directories after lost events");
+		for (Registration registration : pending)
+			for (ISubscriber subscriber : registration.subscribers.keySet())
+				try
+				{
+					subscriber.rescan(registration.directory);
+				}
+				catch (RuntimeException e)
+				{
+					LOGGER.warn("Could not rescan " + registration.directory, e);
+				}
+		lastRescan = System.currentTimeMillis();
+	}
+
+	private static boolean contains(Kind<?>[] kinds, Kind<?> kind)
+	{
+		for (Kind<?> k : kinds)
+			if (k == kind)
+				return true;
+		return false;
+	}
+
+	/**
+	 * @param directory The path of a directory relative to a watched directory, empty for the watched directory itself.
+	 * @param name The path of a file relative to the same watched directory.
+	 * @param deep Whether files in sub-directories are included.
+	 * @return Whether the given file is contained in the given directory.
+	 */
+	static boolean contains(String directory, String name, boolean deep)
+	{
+		if (deep)
+			return directory.isEmpty() || name.startsWith(directory + File.separatorChar);
+		final int parent = name.lastIndexOf(File.separatorChar);
+		return parent < 0 ? directory.isEmpty() : name.regionMatches(0, directory, 0, parent) && parent == directory.length();
+	}
+
+
+	/**
+	 * A watched directory and its subscribers with the kinds of events they are interested in.
+	 */
+	private static class Registration
+	{
+		final Path directory;
+		final HashMap<ISubscriber, Kind<?>[]> subscribers = new HashMap<ISubscriber, Kind<?>[]>();
+
+		Registration(Path directory)
+		{
+			this.directory = directory;
+		}
+
+		HashSet<Kind<?>> kinds()
+		{
+			final HashSet<Kind<?>> kinds = new HashSet<Kind<?>>();
+			for (Kind<?>[] k : subscribers.values())
+				for (Kind<?> kind : k)
+					kinds.add(kind);
+			return kinds;
+		}
+
+		Registration copy()
+		{
+			final Registration copy = new Registration(directory);
+			copy.subscribers.putAll(subscribers);
+			return copy;
+		}
+	}
+
+}
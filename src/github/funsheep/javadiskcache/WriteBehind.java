@@ -0,0 +1,467 @@
+/*
+	This file is part of the java diskcache library.
+	Copyright (C) 2005-2013 funsheep, cgrote
+
+	This library is subject to the terms of the Mozilla Public License, v. 2.0.
+	You should have received a copy of the MPL along with this library; see the
+	file LICENSE. If not, you can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package github.funsheep.javadiskcache;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Writes the content of a loaded source to the cache file in the background.
+ * The loading thread only copies the content into a buffer. Full buffers are queued and written by a separate writer, which
+ * also updates the checksums of the content. The number of buffers is bounded, the loading thread blocks only if all buffers
+ * are waiting to be written. Content that has not been written yet is read from the queued buffers.
+ * <p>
+ * Written buffers are kept as a window of the most recent content, followers that are behind the loading position read from
+ * this window instead of the cache file. The memory of the windows of all sources loaded by a cache is limited, see
+ * {@link Windows}.
+ *
+ * @author funsheep
+ */
+class WriteBehind
+{
+
+	/** Maximum size of the buffers waiting to be written per loaded source. */
+	static final int MAX_MEMORY = 512 * 1024;
+	/** Default size of the window per loaded source. */
+	static final int DEFAULT_WINDOW = 4 * 1024 * 1024;
+	/** Default memory of the windows of all sources loaded by a cache. */
+	static final long DEFAULT_WINDOW_MEMORY = 64 * 1024 * 1024;
+
+	private final SeekableByteChannel chan;
+	private final Executor executor;
+	private final Checksums checksums;
+	private final BufferPool pool;
+	private final int maxBuffers;
+	private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<ByteBuffer>();
+	private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+	private final ArrayDeque<ByteBuffer> window = new ArrayDeque<ByteBuffer>();
+	private final Windows windows;
+	private final int windowSize;
+	private ByteBuffer current = null;
+	private int buffers = 0;
+	private long windowStart;
+	private long windowBytes = 0;
+	private long written;
+	private boolean writing = false;
+	private boolean released = false;
+	private IOException error = null;
+
+
+	/**
+	 * @param chan The cache file, positioned at the given position.
+	 * @param position The position at which the content is appended.
+	 * @param checksums The checksums to update with the written content or <code>null</code>.
+	 * @param pool The pool of heap buffers to use.
+	 * @param windows The size and memory of the windows of written content kept for followers.
+	 * @param executor Writes the content in the background, <code>null</code> to write in the calling thread.
+	 */
+	WriteBehind(SeekableByteChannel chan, long position, Checksums checksums, BufferPool pool, Windows windows, Executor executor)
+	{
+		this.chan = chan;
+		this.executor = executor;
+		this.written = position;
+		this.windowStart = position;
+		this.checksums = checksums;
+		this.pool = pool;
+		this.maxBuffers = Math.max(2, MAX_MEMORY / pool.bufferSize());
+		this.windows = windows;
+		this.windowSize = windows.size();
+	}
+
+	/**
+	 * Appends the given content. Blocks if all buffers are waiting to be written.
+	 * @throws IOException if writing previous content failed.
+	 */
+	synchronized void put(byte[] b, int off, int len) throws IOException
+	{
+		while (len > 0)
+		{
+			if (error != null)
+				throw error;
+
+			if (current == null)
+			{
+				current = free.poll();
+				if (current == null && buffers < maxBuffers)
+				{
+					current = pool.acquire();
+					buffers++;
+				}
+				if (current == null)
+				{
+					this.await();
+					continue;
+				}
+			}
+
+			final int toCopy = Math.min(len, current.remaining());
+			current.put(b, off, toCopy);
+			off += toCopy;
+			len -= toCopy;
+			if (!current.hasRemaining())
+				this.enqueue();
+		}
+		this.notifyAll(); // followers waiting for the content
+	}
+
+	private void enqueue()
+	{
+		current.flip();
+		queue.add(current);
+		current = null;
+		if (!writing)
+		{
+			writing = true;
+			if (executor != null)
+				try
+				{
+					executor.execute(new Runnable()
+					{
+
+						@Override
+						public void run()
+						{
+							WriteBehind.this.write();
+						}
+					});
+					return;
+				}
+				catch (RejectedExecutionException e)
+				{
+					// the cache has been closed, the loading thread writes the rest
+				}
+			this.write();
+		}
+	}
+
+	private void write()
+	{
+		while (true)
+		{
+			final ByteBuffer buf;
+			final long position;
+			synchronized (this)
+			{
+				buf = queue.peek();
+				if (buf == null)
+				{
+					writing = false;
+					this.notifyAll();
+					return;
+				}
+				position = written;
+			}
+
+			try
+			{
+				final ByteBuffer src = buf.duplicate();
+				while (src.hasRemaining())
+					write(chan, src, position + src.position());
+				if (checksums != null)
+					checksums.update(buf.array(), buf.arrayOffset(), buf.limit());
+			}
+			catch (IOException e)
+			{
+				synchronized (this)
+				{
+					error = e;
+					queue.clear();
+					writing = false;
+					this.notifyAll();
+					return;
+				}
+			}
+
+			synchronized (this)
+			{
+				queue.poll();
+				written += buf.limit();
+				buffers--;
+				this.keep(buf);
+				this.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Appends a written buffer to the window. Drops the oldest buffers of the window if it gets
+	 * too large or the memory of all windows is exhausted.
+	 */
+	private void keep(ByteBuffer buf)
+	{
+		while (!window.isEmpty() && windowBytes + buf.limit() > windowSize)
+			this.dropOldest();
+
+		if (buf.limit() > windowSize || !windows.reserve(buf.capacity()))
+		{
+			// the window has to end at the written position
+			while (!window.isEmpty())
+				this.dropOldest();
+			windowStart = written;
+			this.recycle(buf);
+			return;
+		}
+
+		window.add(buf);
+		windowBytes += buf.limit();
+	}
+
+	private void dropOldest()
+	{
+		final ByteBuffer buf = window.poll();
+		windowStart += buf.limit();
+		windowBytes -= buf.limit();
+		windows.unreserve(buf.capacity());
+		this.recycle(buf);
+	}
+
+	private void recycle(ByteBuffer buf)
+	{
+		buf.clear();
+		if (buffers < maxBuffers && free.size() < maxBuffers)
+		{
+			free.add(buf);
+			buffers++;
+		}
+		else
+			pool.release(buf);
+	}
+
+	/**
+	 * Blocks until all content has been written.
+	 * @throws IOException if writing failed.
+	 */
+	synchronized void flush() throws IOException
+	{
+		if (current != null && current.position() > 0)
+			this.enqueue();
+		while ((!queue.isEmpty() || writing) && error == null)
+			this.await();
+		if (error != null)
+			throw error;
+	}
+
+	/**
+	 * Blocks until the content at the given position has been appended.
+	 * @throws IOException if writing failed.
+	 */
+	synchronized void awaitContent(long pos) throws IOException
+	{
+		while (error == null && !released && pos >= this.appended())
+			this.await();
+		if (error != null)
+			throw error;
+	}
+
+	private long appended()
+	{
+		long appended = written;
+		for (ByteBuffer buf : queue)
+			appended += buf.limit();
+		if (current != null)
+			appended += current.position();
+		return appended;
+	}
+
+	/**
+	 * Returns the buffers to the pool. Must be called after the last {@link #flush()}.
+	 */
+	synchronized void release()
+	{
+		released = true;
+		this.notifyAll();
+		while (!window.isEmpty())
+			this.dropOldest();
+		windowStart = written;
+		if (writing)
+			return; // still in use by the writer, leave them to the garbage collector
+		for (ByteBuffer buf : free)
+			pool.release(buf);
+		free.clear();
+		pool.release(current);
+		current = null;
+		buffers = 0;
+	}
+
+	private void await() throws IOException
+	{
+		try
+		{
+			this.wait();
+		}
+		catch (InterruptedException e)
+		{
+			throw new InterruptedIOException();
+		}
+	}
+
+	/**
+	 * Reads content from the given position, either from the cache file or from the buffers that have not been written yet.
+	 * @param reader The own channel of the reader on the cache file or <code>null</code> to read from the written channel.
+	 * @return The number of bytes read, <code>0</code> if the given position has not been appended yet.
+	 * @throws IOException if writing the content at the given position failed.
+	 */
+	int read(long pos, ByteBuffer dst, SeekableByteChannel reader) throws IOException
+	{
+		final long available;
+		synchronized (this)
+		{
+			if (pos >= written)
+			{
+				if (error != null)
+					throw error;
+				long start = written;
+				for (ByteBuffer buf : queue)
+				{
+					if (pos < start + buf.limit())
+						return copy(buf, (int)(pos - start), buf.limit(), dst);
+					start += buf.limit();
+				}
+				if (current != null && pos < start + current.position())
+					return copy(current, (int)(pos - start), current.position(), dst);
+				return 0;
+			}
+
+			if (pos >= windowStart) // recently written content
+			{
+				long start = windowStart;
+				for (ByteBuffer buf : window)
+				{
+					if (pos < start + buf.limit())
+						return copy(buf, (int)(pos - start), buf.limit(), dst);
+					start += buf.limit();
+				}
+			}
+			available = written - pos;
+		}
+
+		// written content does not change, read it without blocking the writer
+		if (dst.remaining() <= available)
+			return readWritten(reader, dst, pos);
+
+		final ByteBuffer part = dst.duplicate();
+		part.limit(part.position() + (int)available);
+		final int read = readWritten(reader, part, pos);
+		if (read > 0)
+			dst.position(dst.position() + read);
+		return read;
+	}
+
+	private int readWritten(SeekableByteChannel reader, ByteBuffer dst, long pos) throws IOException
+	{
+		if (reader != null)
+		{
+			// content in the last frame of a compressed file is not visible to other channels yet
+			final int read = read(reader, dst, pos);
+			if (read > 0)
+				return read;
+		}
+		return read(chan, dst, pos);
+	}
+
+	private static int copy(ByteBuffer buf, int from, int to, ByteBuffer dst)
+	{
+		final int read = Math.min(dst.remaining(), to - from);
+		dst.put(buf.array(), buf.arrayOffset() + from, read);
+		return read;
+	}
+
+	/**
+	 * Reads from the given position of the channel. Does not change the position of file channels, compressed and preallocated
+	 * channels.
+	 */
+	static int read(SeekableByteChannel chan, ByteBuffer dst, long pos) throws IOException
+	{
+		if (chan instanceof FileChannel)
+			return ((FileChannel)chan).read(dst, pos);
+		if (chan instanceof CompressedChannel)
+			return ((CompressedChannel)chan).read(dst, pos);
+		if (chan instanceof PreallocatedChannel)
+			return ((PreallocatedChannel)chan).read(dst, pos);
+
+		synchronized (chan)
+		{
+			final long old = chan.position();
+			chan.position(pos);
+			try
+			{
+				return chan.read(dst);
+			}
+			finally
+			{
+				chan.position(old);
+			}
+		}
+	}
+
+	private static int write(SeekableByteChannel chan, ByteBuffer src, long pos) throws IOException
+	{
+		if (chan instanceof FileChannel)
+			return ((FileChannel)chan).write(src, pos);
+		if (chan instanceof PreallocatedChannel)
+			return ((PreallocatedChannel)chan).write(src, pos);
+
+		synchronized (chan)
+		{
+			chan.position(pos);
+			return chan.write(src);
+		}
+	}
+
+
+	/**
+	 * The size of the window of each loaded source and the memory of the windows of all of them. Shared by the sources
+	 * loaded by one cache. A changed size applies to sources loaded afterwards.
+	 */
+	static class Windows
+	{
+
+		private int size;
+		private long memory;
+		private long used = 0;
+
+		Windows(int size, long memory)
+		{
+			this.size = size;
+			this.memory = memory;
+		}
+
+		synchronized void set(int size, long memory)
+		{
+			this.size = size;
+			this.memory = memory;
+		}
+
+		synchronized int size()
+		{
+			return size;
+		}
+
+		synchronized boolean reserve(int bytes)
+		{
+			if (used + bytes > memory)
+				return false;
+			used += bytes;
+			return true;
+		}
+
+		synchronized void unreserve(int bytes)
+		{
+			used -= bytes;
+		}
+
+	}
+
+}